@@ -0,0 +1,131 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds any number of byte patterns in a single pass over the content (Aho-Corasick). The automaton is built once and
+ * is then read only, so one can be used by many threads - each keeps its own state, starting from 0, as it feeds bytes
+ * through step. The state carries over from one buffer to the next, so matches that span buffers are found.
+ *
+ * The transitions are a dense 256 wide table, which is fine for the handful of patterns a search has.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class AhoCorasick {
+	private static final int[] NO_MATCHES = new int[0];
+
+	private final byte[][] patterns;
+	private final int[][] transitions;
+	private final int[][] matches;
+
+	AhoCorasick(List<byte[]> patterns) {
+		this.patterns = patterns.toArray(new byte[patterns.size()][]);
+
+		List<int[]> gotos = new ArrayList<>();
+		List<List<Integer>> outputs = new ArrayList<>();
+
+		gotos.add(newState());
+		outputs.add(new ArrayList<Integer>());
+
+		for (int p = 0; p < this.patterns.length; p++) {
+			if (this.patterns[p].length == 0) {
+				throw new IllegalArgumentException("Cannot search for an empty pattern");
+			}
+
+			int state = 0;
+
+			for (byte b : this.patterns[p]) {
+				int next = gotos.get(state)[b & 0xff];
+
+				if (next == -1) {
+					next = gotos.size();
+					gotos.get(state)[b & 0xff] = next;
+					gotos.add(newState());
+					outputs.add(new ArrayList<Integer>());
+				}
+
+				state = next;
+			}
+
+			outputs.get(state).add(p);
+		}
+
+		// breadth first, so each state's failure is complete before anything deeper needs it
+		int[] failure = new int[gotos.size()];
+		Queue<Integer> queue = new ArrayDeque<>();
+
+		for (int c = 0; c < 256; c++) {
+			int next = gotos.get(0)[c];
+
+			if (next == -1) {
+				gotos.get(0)[c] = 0;
+			} else {
+				failure[next] = 0;
+				queue.add(next);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+
+			outputs.get(state).addAll(outputs.get(failure[state]));
+
+			for (int c = 0; c < 256; c++) {
+				int next = gotos.get(state)[c];
+
+				if (next == -1) {
+					gotos.get(state)[c] = gotos.get(failure[state])[c];
+				} else {
+					failure[next] = gotos.get(failure[state])[c];
+					queue.add(next);
+				}
+			}
+		}
+
+		this.transitions = gotos.toArray(new int[gotos.size()][]);
+		this.matches = new int[outputs.size()][];
+
+		for (int s = 0; s < matches.length; s++) {
+			List<Integer> output = outputs.get(s);
+
+			if (output.isEmpty()) {
+				matches[s] = NO_MATCHES;
+			} else {
+				matches[s] = new int[output.size()];
+
+				for (int i = 0; i < output.size(); i++) {
+					matches[s][i] = output.get(i);
+				}
+			}
+		}
+	}
+
+	private static int[] newState() {
+		int[] state = new int[256];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	int step(int state, byte b) {
+		return transitions[state][b & 0xff];
+	}
+
+	/**
+	 * @return the patterns that end at this state
+	 */
+	int[] matches(int state) {
+		return matches[state];
+	}
+
+	byte[] pattern(int index) {
+		return patterns[index];
+	}
+
+	int states() {
+		return transitions.length;
+	}
+}
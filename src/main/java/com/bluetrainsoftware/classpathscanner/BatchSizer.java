@@ -0,0 +1,185 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Decides how many resources go into each batch a listener is offered. Each listener's resource() time per resource is
+ * tracked, and the batch grows while the slowest listener gets through a batch well inside the target time (so cheap
+ * filters aren't called over and over) and shrinks when it takes much longer. Batches are also kept under a rough
+ * memory budget, for listeners that hang onto the lists, and drop to the smallest size while the old generation is
+ * nearly full.
+ *
+ * The old generation is the heap pool (or pools) that supports usage thresholds. We compare its usage against our own
+ * limit rather than setting a threshold on it, as the application's monitoring may own that.
+ *
+ * The size learnt carries over from one scan to the next, the listener times don't - each scan keeps its own, so scans
+ * of different classloaders running at the same time don't lose or borrow each other's. They are held weakly, so a
+ * listener (and its classloader) that has gone away isn't kept or counted.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class BatchSizer {
+	/**
+	 * Roughly what a ScanResource (and its JarEntry) costs before counting its name.
+	 */
+	private static final int RESOURCE_OVERHEAD = 300;
+
+	private final int minSize;
+	private final int maxSize;
+	private final long targetNanos;
+	private final long maxBatchBytes;
+	private final double heapLimit;
+	private final List<MemoryPoolMXBean> oldGeneration = new ArrayList<>();
+
+	private volatile int size;
+	private double bytesPerResource = RESOURCE_OVERHEAD;
+
+	/**
+	 * What happened to the batches of one scan, classloaders may be scanned at the same time.
+	 */
+	static class Scan {
+		private int batches;
+		private final List<Integer> chosen = new ArrayList<>();
+		private boolean heapPressure;
+		private final Map<ResourceScanListener, Double> nanosPerResource = new WeakHashMap<>();
+		private final Map<ResourceScanListener, ScanMetrics.ListenerTiming> timings = new WeakHashMap<>();
+	}
+
+	/**
+	 * @param minSize - the smallest batch
+	 * @param maxSize - the largest batch
+	 * @param targetMillis - how long we would like the slowest listener to take with a batch
+	 * @param maxBatchBytes - roughly how much memory a batch may hold
+	 * @param heapLimit - the fraction of the old generation in use at which batches drop to the smallest size
+	 */
+	BatchSizer(int minSize, int maxSize, long targetMillis, long maxBatchBytes, double heapLimit) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.targetNanos = targetMillis * 1000000L;
+		this.maxBatchBytes = maxBatchBytes;
+		this.heapLimit = heapLimit;
+		this.size = Math.max(minSize, Math.min(maxSize, ClasspathResource.MAX_RESOURCES));
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()) {
+				oldGeneration.add(pool);
+			}
+		}
+	}
+
+	int batchSize() {
+		return size;
+	}
+
+	synchronized Scan startScan() {
+		Scan scan = new Scan();
+		scan.chosen.add(size);
+
+		if (underHeapPressure(scan)) {
+			resize(scan, minSize);
+		}
+
+		return scan;
+	}
+
+	/**
+	 * Learns from how long a listener took to decide which of a batch it wanted.
+	 *
+	 * @param scan - the scan the batch is part of, null if it isn't part of one
+	 */
+	synchronized void record(Scan scan, ResourceScanListener listener, List<ResourceScanListener.ScanResource> batch, long nanos) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		double perResource = (double) nanos / batch.size();
+
+		if (scan != null) {
+			scan.batches++;
+
+			Double previous = scan.nanosPerResource.get(listener);
+			scan.nanosPerResource.put(listener, previous == null ? perResource : previous * 0.7 + perResource * 0.3);
+
+			ScanMetrics.ListenerTiming timing = scan.timings.get(listener);
+			scan.timings.put(listener, new ScanMetrics.ListenerTiming(
+				(timing == null ? 0 : timing.batches) + 1,
+				(timing == null ? 0 : timing.resources) + batch.size(),
+				(timing == null ? 0 : timing.resourceNanos) + nanos));
+		}
+
+		long nameLength = 0;
+		for (ResourceScanListener.ScanResource resource : batch) {
+			nameLength += resource.resourceName.length();
+		}
+
+		bytesPerResource = bytesPerResource * 0.9 + (RESOURCE_OVERHEAD + 2.0 * nameLength / batch.size()) * 0.1;
+
+		if (underHeapPressure(scan)) {
+			resize(scan, minSize);
+			return;
+		}
+
+		double slowest = 0;
+
+		if (scan == null) {
+			slowest = perResource; // outside of a scan there is nothing to compare with, so this batch is all we go on
+		} else {
+			for (Double listenerNanos : scan.nanosPerResource.values()) {
+				slowest = Math.max(slowest, listenerNanos);
+			}
+		}
+
+		double projected = slowest * size;
+		int next = size;
+
+		if (projected > targetNanos * 2) {
+			next = size / 2;
+		} else if (projected < targetNanos / 2) {
+			next = size * 2;
+		}
+
+		next = (int) Math.min(next, maxBatchBytes / bytesPerResource);
+
+		resize(scan, Math.max(minSize, Math.min(maxSize, next)));
+	}
+
+	private void resize(Scan scan, int next) {
+		if (next != size) {
+			size = next;
+
+			if (scan != null) {
+				scan.chosen.add(next);
+			}
+		}
+	}
+
+	private boolean underHeapPressure(Scan scan) {
+		for (MemoryPoolMXBean pool : oldGeneration) {
+			MemoryUsage usage = pool.getUsage();
+
+			if (usage != null && usage.getMax() > 0 && usage.getUsed() > usage.getMax() * heapLimit) {
+				if (scan != null) {
+					scan.heapPressure = true;
+				}
+
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return what happened to the batches of this scan
+	 */
+	synchronized ScanMetrics metrics(Scan scan) {
+		return new ScanMetrics(scan.batches, scan.chosen, size, scan.heapPressure, scan.timings);
+	}
+}
@@ -0,0 +1,139 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Locates the central directory of a zip/jar file by reading its "end of central directory" record, without having
+ * to open and enumerate the whole file.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class CentralDirectory {
+	static final int END_RECORD_SIZE = 22;
+	private static final int MAX_COMMENT = 0xFFFF;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int READ_CHUNK = 64 * 1024;
+
+	/**
+	 * where the central directory starts in the file
+	 */
+	final long offset;
+	/**
+	 * how long it is
+	 */
+	final long size;
+	/**
+	 * the number of entries it claims to have
+	 */
+	final int entries;
+
+	CentralDirectory(long offset, long size, int entries) {
+		this.offset = offset;
+		this.size = size;
+		this.entries = entries;
+	}
+
+	/**
+	 * @return the central directory or null if this doesn't look like a zip file
+	 */
+	static CentralDirectory locate(RandomAccessFile raf) throws IOException {
+		long length = raf.length();
+
+		if (length < END_RECORD_SIZE) {
+			return null;
+		}
+
+		// normally there is no comment, so try the last 22 bytes before reading the largest possible tail
+		byte[] tail = read(raf, length - END_RECORD_SIZE, END_RECORD_SIZE);
+		int found = tail.length - END_RECORD_SIZE;
+
+		if (readInt(tail, found) != END_SIGNATURE) {
+			int tailLength = (int) Math.min(length, END_RECORD_SIZE + MAX_COMMENT);
+
+			tail = read(raf, length - tailLength, tailLength);
+			found = findEndRecord(tail);
+
+			if (found == -1) {
+				return null;
+			}
+		}
+
+		long endRecordPosition = length - tail.length + found;
+		long size = readInt(tail, found + 12) & 0xFFFFFFFFL;
+		int entries = readShort(tail, found + 10);
+
+		// the central directory sits directly in front of the end record, this copes with jars that have been prefixed
+		// (e.g. self executing jars). Zip64 files put other records in between, so we just don't know.
+		if (size == 0xFFFFFFFFL || size > endRecordPosition) {
+			return new CentralDirectory(-1, -1, entries);
+		}
+
+		return new CentralDirectory(endRecordPosition - size, size, entries);
+	}
+
+	/**
+	 * A checksum of the central directory. Any change to the names, sizes, CRCs or times of the entries changes this.
+	 *
+	 * @return the CRC-32 of the central directory (and end record), or -1 if it is not a zip file
+	 */
+	static long checksum(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			CentralDirectory cd = locate(raf);
+
+			if (cd == null) {
+				return -1;
+			}
+
+			long start = cd.offset == -1 ? Math.max(0, raf.length() - END_RECORD_SIZE - MAX_COMMENT) : cd.offset;
+			long remaining = raf.length() - start;
+
+			CRC32 crc = new CRC32();
+			byte[] buf = new byte[(int) Math.min(READ_CHUNK, remaining)];
+
+			raf.seek(start);
+
+			while (remaining > 0) {
+				int read = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+
+				if (read == -1) {
+					break;
+				}
+
+				crc.update(buf, 0, read);
+				remaining -= read;
+			}
+
+			return crc.getValue();
+		}
+	}
+
+	private static int findEndRecord(byte[] tail) {
+		for (int pos = tail.length - END_RECORD_SIZE; pos >= 0; pos--) {
+			if (readInt(tail, pos) == END_SIGNATURE) {
+				return pos;
+			}
+		}
+
+		return -1;
+	}
+
+	static byte[] read(RandomAccessFile raf, long position, int length) throws IOException {
+		byte[] buf = new byte[length];
+
+		raf.seek(position);
+		raf.readFully(buf);
+
+		return buf;
+	}
+
+	static int readShort(byte[] buf, int pos) {
+		return (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8);
+	}
+
+	static int readInt(byte[] buf, int pos) {
+		return readShort(buf, pos) | (readShort(buf, pos + 2) << 16);
+	}
+}
@@ -0,0 +1,104 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The differences between two snapshots of a classpath, resource by resource. Only resources with differences are
+ * included. Names are the full entry names (see EntryTable).
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class ClasspathDiff {
+	public static class ResourceChanges {
+		public final URL url;
+		public final File source;
+		public final List<String> added = new ArrayList<>();
+		public final List<String> changed = new ArrayList<>();
+		public final List<String> removed = new ArrayList<>();
+
+		public ResourceChanges(URL url, File source) {
+			this.url = url;
+			this.source = source;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	private final List<ResourceChanges> changes;
+
+	private ClasspathDiff(List<ResourceChanges> changes) {
+		this.changes = Collections.unmodifiableList(changes);
+	}
+
+	public List<ResourceChanges> getChanges() {
+		return changes;
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	public static ClasspathDiff between(ClasspathSnapshot previous, ClasspathSnapshot current) {
+		List<ResourceChanges> changes = new ArrayList<>();
+
+		for (ClasspathSnapshot.ResourceState state : current.getResources()) {
+			ClasspathSnapshot.ResourceState was = previous.find(state.source);
+			ResourceChanges resourceChanges = new ResourceChanges(state.url, state.source);
+
+			if (was == null) {
+				for (int i = 0; i < state.entries.size(); i++) {
+					resourceChanges.added.add(state.entries.name(i));
+				}
+			} else if (was.identity == null || !was.identity.equals(state.identity)) {
+				compare(was.entries, state.entries, resourceChanges);
+			}
+
+			if (!resourceChanges.isEmpty()) {
+				changes.add(resourceChanges);
+			}
+		}
+
+		for (ClasspathSnapshot.ResourceState was : previous.getResources()) {
+			if (current.find(was.source) == null) {
+				ResourceChanges resourceChanges = new ResourceChanges(was.url, was.source);
+
+				for (int i = 0; i < was.entries.size(); i++) {
+					resourceChanges.removed.add(was.entries.name(i));
+				}
+
+				if (!resourceChanges.isEmpty()) {
+					changes.add(resourceChanges);
+				}
+			}
+		}
+
+		return new ClasspathDiff(changes);
+	}
+
+	static void compare(EntryTable previous, EntryTable current, ResourceChanges resourceChanges) {
+		for (int i = 0; i < current.size(); i++) {
+			String name = current.name(i);
+			int was = previous.find(name);
+
+			if (was == -1) {
+				resourceChanges.added.add(name);
+			} else if (!current.sameContent(i, previous, was)) {
+				resourceChanges.changed.add(name);
+			}
+		}
+
+		for (int i = 0; i < previous.size(); i++) {
+			String name = previous.name(i);
+
+			if (current.find(name) == -1) {
+				resourceChanges.removed.add(name);
+			}
+		}
+	}
+}
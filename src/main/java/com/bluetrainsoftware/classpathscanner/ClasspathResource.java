@@ -5,9 +5,16 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -19,6 +26,9 @@ import java.util.jar.JarFile;
  */
 public class ClasspathResource {
 	private final static Logger log = LoggerFactory.getLogger(ClasspathResource.class);
+	/**
+	 * The batch size listeners are offered to begin with, the scanner adjusts it from there.
+	 */
 	public static final int MAX_RESOURCES = 3000;
 	public static final String TARGET_TEST_CLASSES = "target/test-classes".replace("/", File.separator);
 	/**
@@ -41,21 +51,117 @@ public class ClasspathResource {
 	 */
 	private boolean onlyNullJarOffset;
 
+	/**
+	 * Every entry found the last time this resource was enumerated, kept in compact form.
+	 */
+	private EntryTable entryTable;
+
+	/**
+	 * The table being filled in while a directory is walked.
+	 */
+	private EntryTable directoryEntries;
+
+	/**
+	 * The identity of the jar when the entry table was built, only known if a listener wants changes.
+	 */
+	private ResourceIdentity identity;
+
+	/**
+	 * While enumerating - the entries we found last time, and the resources that differ from them.
+	 */
+	private EntryTable previousEntries;
+	private List<ResourceScanListener.ScanResource> changedResources;
+
+	/**
+	 * The length and modification time of the jar when the entry table was made.
+	 */
+	private long tableLength;
+	private long tableLastModified;
+
+	/**
+	 * The packages in the jar, and its length and modification time when they were found.
+	 */
+	private PackageFilter packageFilter;
+	private long filterLength;
+	private long filterLastModified;
+
+	/**
+	 * The entries we read to build the package filter (for the jar as it was at filterLength and filterLastModified),
+	 * kept so enumerating the jar uses them rather than reading it again. Null once they have been used.
+	 */
+	private EntryTable filterEntries;
+
+	/**
+	 * The scanner that found this resource, it holds the configuration for how we scan.
+	 */
+	private ClasspathScanner scanner;
+
+	/**
+	 * The classpath we were found on, null if we weren't found on one (e.g. by the pre-scan).
+	 */
+	private ClasspathScanner.Classpath classpath;
+
+	/**
+	 * The META-INF descriptors in the entry table, null if we haven't read them yet.
+	 */
+	private List<DescriptorIndex.Descriptor> descriptors;
+
+	/**
+	 * What the specialists look at while deciding whether we are theirs, only there while they decide.
+	 */
+	private ResourceProbe probe;
+
+	/**
+	 * How the specialists recognise our file, kept until its length or modification time changes.
+	 */
+	private SharedEntryTables.Key routeKey;
+
+	/**
+	 * While firing - the only listeners to tell, or null for everyone.
+	 */
+	private Collection<ResourceScanListener> onlyListeners;
 
 	class ListenerInterest {
 		final public ResourceScanListener listener;
 		final public ResourceScanListener.InterestAction action;
+		/**
+		 * set once the listener has been through a full scan of this resource
+		 */
+		public boolean delivered;
 
 		ListenerInterest(ResourceScanListener listener, ResourceScanListener.InterestAction action) {
 			this.listener = listener;
 			this.action = action;
 		}
+
+		boolean changesOnly() {
+			return action == ResourceScanListener.InterestAction.CHANGES && delivered;
+		}
 	}
 
 	class OffsetListener implements Comparable<OffsetListener> {
 		public ResourceScanListener.InterestingResource interestingResource;
 		public String jarOffset;
 		public List<ListenerInterest> listeners = new ArrayList<>();
+		private byte[] jarOffsetBytes;
+
+		byte[] jarOffsetBytes() {
+			if (jarOffsetBytes == null) {
+				jarOffsetBytes = jarOffset.getBytes(EntryTable.UTF8);
+			}
+
+			return jarOffsetBytes;
+		}
+
+		ListenerInterest interestOf(ResourceScanListener listener) {
+			for (ListenerInterest interested : listeners) {
+				if (interested.listener == listener) {
+					return interested;
+				}
+			}
+
+			return null;
+		}
 
 		@Override
 		public int compareTo(OffsetListener o) {
@@ -87,12 +193,32 @@ public class ClasspathResource {
 			onlyNullJarOffset = true;
 		}
 
-		for (ResourceScanListener listener : listeners) {
+		if (hasPackageInterestListeners(listeners)) {
+			PackageFilter filter = packageFilter();
+
+			for (OffsetListener offsetListener : jarOffsets) {
+				offsetListener.interestingResource.setPackageFilter(filter, offsetListener.jarOffset);
+			}
+		}
+
+		ListenerGuard guard = listenerGuard();
+
+		for (final ResourceScanListener listener : listeners) {
 			try {
-				for (OffsetListener offsetListener : jarOffsets) {
-					ResourceScanListener.InterestAction interestAction = listener.isInteresting(offsetListener.interestingResource);
+				for (final OffsetListener offsetListener : jarOffsets) {
+					ResourceScanListener.InterestAction interestAction = guard.call(listener, new Callable<ResourceScanListener.InterestAction>() {
+						@Override
+						public ResourceScanListener.InterestAction call() throws Exception {
+							if (listener instanceof PackageInterestListener &&
+								  !offsetListener.interestingResource.mightContainAnyPackage(((PackageInterestListener) listener).getInterestingPackages())) {
+								return ResourceScanListener.InterestAction.NONE; // none of its packages are here, don't bother asking
+							}
+
+							return listener.isInteresting(offsetListener.interestingResource);
+						}
+					});
 
-					if (interestAction != ResourceScanListener.InterestAction.NONE) {
+					if (interestAction != null && interestAction != ResourceScanListener.InterestAction.NONE) {
 						offsetListener.listeners.add(new ListenerInterest(listener, interestAction));
 					}
 				}
@@ -102,6 +228,101 @@ public class ClasspathResource {
 		}
 	}
 
+	private boolean hasPackageInterestListeners(List<ResourceScanListener> listeners) {
+		for (ResourceScanListener listener : listeners) {
+			if (listener instanceof PackageInterestListener) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * The packages of this jar. If we haven't been through the jar yet (or it has changed since) its entries are read
+	 * now - without any listeners - so the filter is there before anyone is asked about the jar, and kept for when the
+	 * jar is enumerated.
+	 *
+	 * @return the filter, or null for directories or unreadable jars
+	 */
+	public PackageFilter packageFilter() {
+		if (!classesSource.isFile()) {
+			return null;
+		}
+
+		long length = classesSource.length();
+		long lastModified = classesSource.lastModified();
+
+		if (packageFilter != null && filterLength == length && filterLastModified == lastModified) {
+			return packageFilter;
+		}
+
+		EntryTable table;
+		boolean keep = false;
+
+		if (entryTable != null && tableLength == length && tableLastModified == lastModified) {
+			table = entryTable.retain();
+		} else {
+			// our own table stays as it is, change listeners need it to tell what is different when the jar is scanned
+			table = sharedEntries();
+
+			if (table == null) {
+				table = readEntries();
+				shareEntries(table);
+				keep = table.size() > 0; // so enumerating the jar doesn't read it all over again
+			}
+		}
+
+		try {
+			packageFilter = table.size() > 0 ? PackageFilter.of(table) : null;
+			filterLength = length;
+			filterLastModified = lastModified;
+		} finally {
+			if (filterEntries != null) {
+				filterEntries.release();
+			}
+
+			filterEntries = keep ? table : null;
+
+			if (!keep) {
+				table.release();
+			}
+		}
+
+		return packageFilter;
+	}
+
+	/**
+	 * @return the entries read for the package filter (the reference is now the caller's), or null if there are none or
+	 * the jar has changed since they were read
+	 */
+	private EntryTable takeFilterEntries() {
+		EntryTable table = filterEntries;
+		filterEntries = null;
+
+		if (table != null && (filterLength != classesSource.length() || filterLastModified != classesSource.lastModified())) {
+			table.release();
+			table = null;
+		}
+
+		return table;
+	}
+
+	/**
+	 * Spelunks through the classpath telling only these listeners (e.g. ones that were registered part way through a scan).
+	 *
+	 * @param only - the listeners to tell, or null for everyone
+	 */
+	public void fireListeners(Collection<ResourceScanListener> only) {
+		onlyListeners = only;
+
+		try {
+			fireListeners();
+		} finally {
+			onlyListeners = null;
+		}
+	}
+
 	/**
 	 * Spelunks through the classpath looking for the resources
 	 */
@@ -110,16 +331,27 @@ public class ClasspathResource {
 			return; // no-one is interested
 		}
 
-		List<ResourceScanListener.ScanResource> scanResources = new ArrayList<>(MAX_RESOURCES);
+		if (entryTable != null && identity != null && onlyDeliveredChangeListeners() && identity.equals(ResourceIdentity.of(classesSource))) {
+			return; // nothing has changed since they were last told
+		}
+
+		List<ResourceScanListener.ScanResource> scanResources = new ArrayList<>(scanner().batchSize());
 
 		if (classesSource.isDirectory()) {
 			OffsetListener listener = jarOffsets.iterator().next();
 
 			// only process if anyone is listening
 			if (listener.listeners.size() > 0) {
+				directoryEntries = new EntryTable(scanner().getEntryStorage());
+				startTrackingChanges();
+
 				processDirectory(scanResources, classesSource, "", listener);
 
 				fireFileResourceListeners(scanResources, listener);
+
+				finishTrackingChanges(directoryEntries.complete());
+				replaceEntryTable(directoryEntries);
+				directoryEntries = null;
 			}
 		} else if (!externalHandler(scanResources)) {
 			processJarFile(scanResources);
@@ -133,17 +365,35 @@ public class ClasspathResource {
 	 * @return true if handled
 	 */
 	protected boolean externalHandler(List<ResourceScanListener.ScanResource> scanResources) {
-		for(ClasspathScannerSpecialist specialist : ClasspathSpecialistLoader.specialists) {
-			try {
-				if (specialist.handlesClasspathResource(this, scanResources)) {
-					return true;
-				}
-			} catch (IOException e) {
-				log.error("Unable to process classpath resource {}", classesSource.getAbsolutePath(), e);
-			}
+		return ClasspathSpecialistLoader.route(this, scanResources);
+	}
+
+	/**
+	 * @return the start and manifest of our file, read at most once while the specialists decide who handles us
+	 */
+	public synchronized ResourceProbe getProbe() {
+		if (probe == null) {
+			probe = new ResourceProbe(classesSource, scanner().jarHandles());
 		}
 
-		return false;
+		return probe;
+	}
+
+	synchronized void finishedProbing() {
+		probe = null;
+	}
+
+	/**
+	 * @return the key our specialist is remembered under, or null if our file can't be read
+	 */
+	SharedEntryTables.Key routeKey() {
+		SharedEntryTables.Key key = routeKey;
+
+		if (key == null || key.length != classesSource.length() || key.lastModified != classesSource.lastModified()) {
+			routeKey = key = SharedEntryTables.Key.of(classesSource);
+		}
+
+		return key;
 	}
 
 	protected void processDirectory(List<ResourceScanListener.ScanResource> scanResources, File dir, String packageName, OffsetListener listener) {
@@ -174,9 +424,23 @@ public class ClasspathResource {
 	}
 
 	private void processFile(List<ResourceScanListener.ScanResource> scanResources, String packageName, OffsetListener listener, File file) {
-		scanResources.add(new ResourceScanListener.ScanResource(url, file, packageName + "/" + file.getName()));
+		ResourceScanListener.ScanResource scanResource = new ResourceScanListener.ScanResource(url, file, packageName + "/" + file.getName());
+
+		if (directoryEntries != null) {
+			String entryName = packageName.length() > 0 ? packageName + "/" + file.getName() : file.getName();
+
+			if (file.isDirectory()) {
+				entryName += "/";
+			}
+
+			int index = directoryEntries.add(entryName, file.isDirectory() ? -1 : file.length(), -1, file.lastModified());
+
+			trackChange(scanResource, entryName, directoryEntries, index);
+		}
+
+		scanResources.add(scanResource);
 
-		if (scanResources.size() >= MAX_RESOURCES) {
+		if (scanResources.size() >= scanner().batchSize()) {
 			fireFileResourceListeners(scanResources, listener);
 		}
 	}
@@ -185,55 +449,159 @@ public class ClasspathResource {
 		if (scanResources.size() > 0) {
 
 			for (ListenerInterest interested : offsetListener.listeners) {
-				try {
-					List<ResourceScanListener.ScanResource> desired = interested.listener.resource(scanResources);
-
-					if (desired != null) {
-						for (ResourceScanListener.ScanResource desire : desired) {
-							if (desire.file.isFile()) {
-								FileInputStream stream = new FileInputStream(desire.file);
+				List<ResourceScanListener.ScanResource> offered = offeredTo(interested, scanResources);
 
-								interested.listener.deliver(desire, stream);
-
-								stream.close();
-							}
-						}
-					}
-				} catch (Exception e) {
-					throw new RuntimeException("Unable to ask listener for resources", e);
+				if (offered.size() == 0) {
+					continue;
 				}
+
+				deliver(interested, offered, fileSource);
 			}
 
-			scanResources.clear();
+			clearBatch(scanResources);
 		}
 	}
 
 	protected void processJarFile(List<ResourceScanListener.ScanResource> scanResources) {
 		JarFile jf = null;
+		ResourceIdentity current = hasChangeListeners(false) ? ResourceIdentity.of(classesSource) : null;
+		EntryTable shared = takeFilterEntries();
+
+		if (shared == null) {
+			shared = sharedEntries();
+		}
+
+		if (shared != null) { // read for the package filter, or another classloader (or JVM) has already been through this jar
+			JarSource source = new JarSource(null);
+
+			try {
+				extractEntries(scanResources, null, shared, source);
+
+				identity = current;
+			} finally {
+				source.close();
+			}
+
+			return;
+		}
+
+		JarHandleCache handles = scanner().jarHandles();
+		JarHandleCache.Handle handle = handles == null ? null : handles.acquire(classesSource);
 
 		try {
-			jf = new JarFile(classesSource);
+			jf = handle == null ? new JarFile(classesSource) : handle.jar();
 		} catch (IOException e) {
 			log.error("You have a non jar-file resource on your classpath {}", classesSource.getAbsolutePath());
 
+			if (handle != null) {
+				handles.evict(classesSource);
+				handles.release(handle);
+			}
+
 			return;
 		}
 
 		try {
-			extractJarEntries(scanResources, jf);
+			ExecutorService executor = scanner().parallelExecutor();
 
+			if (executor != null && !hasChangeListeners(false) && jf.size() >= scanner().getParallelEntryThreshold()) {
+				extractJarEntriesInParallel(jf, executor);
+			} else {
+				extractJarEntries(scanResources, jf);
+			}
+
+			identity = current;
 
+			if (entryTable != null) {
+				shareEntries(entryTable);
+			}
 		} finally {
-			try {
-				jf.close();
-			} catch (IOException e) {
-				log.error("Unable to close jar file {}", classesSource);
+			if (handle != null) {
+				handles.release(handle);
+			} else {
+				try {
+					jf.close();
+				} catch (IOException e) {
+					log.error("Unable to close jar file {}", classesSource);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the entries of this jar (with a reference held for us) if another classloader in this JVM, or another JVM
+	 * sharing our index, has already been through it, otherwise null
+	 */
+	EntryTable sharedEntries() {
+		EntryTable table = scanner().isShareEntryTables() ? SharedEntryTables.acquire(classesSource) : null;
+		SharedScanIndex index = scanner().sharedScanIndex();
+
+		if (table == null && index != null) {
+			table = index.load(classesSource);
+
+			if (table != null && scanner().isShareEntryTables()) {
+				SharedEntryTables.share(classesSource, table);
 			}
 		}
+
+		return table;
+	}
+
+	/**
+	 * Makes the entries we have just read available to the other classloaders and JVMs.
+	 */
+	void shareEntries(EntryTable table) {
+		if (scanner().isShareEntryTables()) {
+			SharedEntryTables.share(classesSource, table);
+		}
+
+		SharedScanIndex index = scanner().sharedScanIndex();
+
+		if (index != null) {
+			index.store(classesSource, table);
+		}
 	}
 
 	public void extractJarEntries(List<ResourceScanListener.ScanResource> scanResources, JarFile jf) {
-		Enumeration<JarEntry> entries = jf.entries();
+		JarSource source = new JarSource(jf);
+
+		try {
+			extractEntries(scanResources, jf.entries(), null, source);
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Works through the entries of the jar, either as we find them in the jar itself or from a table we already have,
+	 * batching them up for the listeners of each jar offset.
+	 *
+	 * @param jarEntries - the entries from the jar, or null if they come from the known table
+	 * @param known - a table that already holds all of the entries (e.g. shared with another classloader)
+	 * @param source - how to read an entry
+	 */
+	private void extractEntries(List<ResourceScanListener.ScanResource> scanResources, Enumeration<JarEntry> jarEntries, EntryTable known, JarSource source) {
+		EntryTable table = known == null ? new EntryTable(scanner().getEntryStorage()) : known;
+		int position = 0;
+		startTrackingChanges();
+
+		boolean multiReleaseJar = false;
+
+		if (scanner().getMultiReleaseVersion() > 0) {
+			if (known == null) {
+				// we can't say whether it has versioned entries, or which entries are effective, until we have seen them all
+				while (jarEntries.hasMoreElements()) {
+					JarEntry entry = jarEntries.nextElement();
+					table.add(entry.getName(), entry.getSize(), entry.getCrc(), entry.getTime());
+				}
+
+				known = table.complete();
+			}
+
+			multiReleaseJar = MultiRelease.hasVersionedEntries(known) && isMultiRelease(source);
+		}
+
+		MultiRelease multiRelease = multiReleaseJar ? MultiRelease.resolve(known, scanner().getMultiReleaseVersion()) : null;
 
 		String lastPrefix = "";
 		int offsetStrip = 0;
@@ -246,14 +614,42 @@ public class ClasspathResource {
 			thereAreListeners = offsetListener.listeners != null && offsetListener.listeners.size() > 0;
 		}
 
-		while (entries.hasMoreElements()) {
-			JarEntry entry = entries.nextElement();
+		while (known == null ? jarEntries.hasMoreElements() : position < known.size()) {
+			JarEntry entry;
+			String name = null;
+			int index;
+
+			if (known == null) {
+				entry = jarEntries.nextElement();
+				index = table.add(entry.getName(), entry.getSize(), entry.getCrc(), entry.getTime());
+			} else {
+				index = position++;
+
+				if (multiRelease != null) {
+					name = multiRelease.name(index);
+					index = multiRelease.effective(index);
+
+					if (index == -1) {
+						continue; // a versioned copy delivered elsewhere, or not for this version
+					}
+
+					if (name == null) {
+						name = known.name(position - 1);
+					}
+				}
+
+				entry = jarEntry(known, index);
+			}
 
-			if (!onlyNullJarOffset && (lastPrefix.length() == 0 || !entry.getName().startsWith(lastPrefix))) {
-				OffsetListener newOffsetListener = findOffsetListener(entry.getName());
+			if (name == null) {
+				name = entry.getName();
+			}
+
+			if (!onlyNullJarOffset && (lastPrefix.length() == 0 || !name.startsWith(lastPrefix))) {
+				OffsetListener newOffsetListener = findOffsetListener(name);
 
 				if (newOffsetListener != offsetListener) {
-					fireListeners(scanResources, offsetListener, jf);
+					fireListeners(scanResources, offsetListener, source);
 
 					offsetListener = newOffsetListener;
 
@@ -270,78 +666,766 @@ public class ClasspathResource {
 					}
 				}
 
-			} else if (scanResources.size() >= MAX_RESOURCES) {
-				fireListeners(scanResources, offsetListener, jf);
+			} else if (scanResources.size() >= scanner().batchSize()) {
+				fireListeners(scanResources, offsetListener, source);
 			}
 
 			if (thereAreListeners) {
-				scanResources.add(new ResourceScanListener.ScanResource(currentUrl, entry, resourceName(offsetStrip, entry.getName()), offsetListener.interestingResource.url));
+				ResourceScanListener.ScanResource scanResource = new ResourceScanListener.ScanResource(currentUrl, entry, resourceName(offsetStrip, name), offsetListener.interestingResource.url, index);
+
+				trackChange(scanResource, entry.getName(), table, index);
+
+				scanResources.add(scanResource);
 			}
 		}
 
 		// anything remaining
-		fireListeners(scanResources, offsetListener, jf);
+		fireListeners(scanResources, offsetListener, source);
+
+		finishTrackingChanges(known == null ? table.complete() : table);
+		replaceEntryTable(table);
 	}
 
-	private String resourceName(int offsetStrip, String name) {
-		if (offsetStrip > 0) {
-			name = name.substring(offsetStrip);
+	/**
+	 * @return true if the manifest of the jar says it is a multi-release jar
+	 */
+	private boolean isMultiRelease(JarSource source) {
+		try {
+			return MultiRelease.isMultiRelease(source.jar());
+		} catch (IOException e) {
+			log.error("Unable to read the manifest of {}", classesSource);
+
+			return false;
 		}
+	}
 
-		if (name.endsWith("/")) {
-			name = name.substring(0, name.length() - 1);
+	/**
+	 * Recreates the jar entry from what we know about it, the jar file can find its content by name.
+	 */
+	static JarEntry jarEntry(EntryTable table, int index) {
+		JarEntry entry = new JarEntry(table.name(index));
+
+		if (table.size(index) >= 0) {
+			entry.setSize(table.size(index));
 		}
 
-		return name;
-	}
+		if (table.crc(index) >= 0) {
+			entry.setCrc(table.crc(index));
+		}
 
-	public void fireListeners(List<ResourceScanListener.ScanResource> scanResources, OffsetListener offsetListener, JarFile jf) {
-		if (scanResources.size() > 0) {
+		if (table.time(index) >= 0) {
+			entry.setTime(table.time(index));
+		}
 
-			for (ListenerInterest interested : offsetListener.listeners) {
-				try {
-					List<ResourceScanListener.ScanResource> desired = interested.listener.resource(scanResources);
+		return entry;
+	}
 
-					if (desired != null) {
-						for (ResourceScanListener.ScanResource desire : desired) {
-							interested.listener.deliver(desire, jf.getInputStream(desire.entry));
-						}
-					}
-				} catch (Exception e) {
-					throw new RuntimeException("Unable to ask listener for resources", e);
-				}
-			}
+	private void replaceEntryTable(EntryTable table) {
+		EntryTable old = entryTable;
 
-			scanResources.clear();
+		entryTable = table;
+		identity = null;
+		descriptors = null;
+		tableLength = classesSource.length();
+		tableLastModified = classesSource.lastModified();
+
+		if (old != null) {
+			old.release();
 		}
 	}
 
 	/**
-	 * Finds the name of the matching offset listener for this resource
-	 *
-	 * @param name - the name found inside the entry
-	 * @return - the matching listener. If an "empty" one is found then use that as last resort.
+	 * Gives back any storage held for this resource - called when the classloader it belongs to is released.
 	 */
-	private OffsetListener findOffsetListener(String name) {
-		OffsetListener emptyListener = null;
+	public void release() {
+		replaceEntryTable(null);
+		packageFilter = null;
 
-		for (OffsetListener listener : jarOffsets) {
-			if (listener.jarOffset.length() == 0) {
-				emptyListener = listener;
-			} else if (name.startsWith(listener.jarOffset)) {
-				return listener;
-			}
+		if (filterEntries != null) {
+			filterEntries.release();
+			filterEntries = null;
 		}
+		ClasspathSpecialistLoader.forget(classesSource);
 
-		return emptyListener;
+		if (scanner().jarHandles() != null) {
+			scanner().jarHandles().evict(classesSource);
+		}
 	}
 
-
 	/**
-	 * Looks through any offsets and removes any listeners that asked to listen to this
-	 * resource only once.
+	 * Opens one of our entries, through the scanner's kept open jars if it has them.
+	 *
+	 * @return the content, or null if it isn't there
 	 */
-	public void removeSingleFireListeners() {
+	InputStream open(ResourceScanListener.ScanResource resource) throws IOException {
+		if (resource.file != null) {
+			return fileSource.open(resource);
+		}
+
+		final JarSource source = new JarSource(null);
+
+		try {
+			JarEntry entry = resource.entry.getName().length() == 0 ? null : source.jar().getJarEntry(resource.entry.getName());
+			InputStream stream = entry == null ? null : source.open(new ResourceScanListener.ScanResource(url, entry, resource.resourceName, resource.offsetUrl, resource.entryIndex));
+
+			if (stream == null) {
+				source.close();
+
+				return null;
+			}
+
+			return new FilterInputStream(stream) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						source.close();
+					}
+				}
+			};
+		} catch (IOException | RuntimeException e) {
+			source.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * If any listener only wants changes, remember what we had last time so we can tell what is different.
+	 */
+	private void startTrackingChanges() {
+		previousEntries = entryTable;
+		changedResources = previousEntries != null && hasChangeListeners(true) ? new ArrayList<ResourceScanListener.ScanResource>() : null;
+	}
+
+	private void trackChange(ResourceScanListener.ScanResource scanResource, String entryName, EntryTable table, int index) {
+		if (changedResources != null) {
+			int was = previousEntries.find(entryName);
+
+			if (was == -1 || !table.sameContent(index, previousEntries, was)) {
+				changedResources.add(scanResource);
+			}
+		}
+	}
+
+	private void finishTrackingChanges(EntryTable table) {
+		if (changedResources != null) {
+			fireRemovals(previousEntries, table);
+		}
+
+		ListenerGuard guard = listenerGuard();
+
+		for (OffsetListener offsetListener : jarOffsets) {
+			for (ListenerInterest interested : offsetListener.listeners) {
+				// one that was cut off part way through has missed things, so it is told everything next time
+				if (isFiring(interested) && !guard.isDisabled(interested.listener)) {
+					interested.delivered = true;
+				}
+			}
+		}
+
+		changedResources = null;
+		previousEntries = null;
+	}
+
+	/**
+	 * Tells any change listeners about entries that were there last time but have since gone.
+	 */
+	private void fireRemovals(EntryTable previous, EntryTable table) {
+		Map<OffsetListener, List<ResourceScanListener.ScanResource>> removals = new HashMap<>();
+
+		for (int i = 0; i < previous.size(); i++) {
+			String name = previous.name(i);
+
+			if (table.find(name) == -1) {
+				OffsetListener offsetListener = onlyNullJarOffset ? jarOffsets.iterator().next() : findOffsetListener(name);
+
+				if (offsetListener != null) {
+					List<ResourceScanListener.ScanResource> removed = removals.get(offsetListener);
+
+					if (removed == null) {
+						removed = new ArrayList<>();
+						removals.put(offsetListener, removed);
+					}
+
+					removed.add(removedResource(name, offsetListener));
+				}
+			}
+		}
+
+		ListenerGuard guard = listenerGuard();
+
+		for (final Map.Entry<OffsetListener, List<ResourceScanListener.ScanResource>> removal : removals.entrySet()) {
+			for (final ListenerInterest interested : removal.getKey().listeners) {
+				if (interested.changesOnly() && interested.listener instanceof ResourceChangeListener) {
+					try {
+						guard.call(interested.listener, new Callable<Void>() {
+							@Override
+							public Void call() throws Exception {
+								((ResourceChangeListener) interested.listener).removed(removal.getValue());
+								return null;
+							}
+						});
+					} catch (Exception e) {
+						throw new RuntimeException("Unable to tell listener about removed resources", e);
+					}
+				}
+			}
+		}
+	}
+
+	private ResourceScanListener.ScanResource removedResource(String name, OffsetListener offsetListener) {
+		if (classesSource.isDirectory()) {
+			String resourceName = resourceName(0, name);
+
+			return new ResourceScanListener.ScanResource(url, new File(classesSource, name), resourceName.contains("/") ? resourceName : "/" + resourceName);
+		} else {
+			return new ResourceScanListener.ScanResource(url, new JarEntry(name), resourceName(offsetListener.jarOffset.length(), name), offsetListener.interestingResource.url);
+		}
+	}
+
+	/**
+	 * Listeners that only want changes and have seen this resource before only get the changed resources.
+	 */
+	private List<ResourceScanListener.ScanResource> offeredTo(ListenerInterest interested, List<ResourceScanListener.ScanResource> scanResources) {
+		if (!isFiring(interested)) {
+			return Collections.emptyList();
+		}
+
+		return changedResources != null && interested.changesOnly() ? changedResources : scanResources;
+	}
+
+	private boolean isFiring(ListenerInterest interested) {
+		return onlyListeners == null || onlyListeners.contains(interested.listener);
+	}
+
+	private void clearBatch(List<ResourceScanListener.ScanResource> scanResources) {
+		scanResources.clear();
+
+		if (changedResources != null) {
+			changedResources.clear();
+		}
+	}
+
+	private boolean hasChangeListeners(boolean deliveredOnly) {
+		for (OffsetListener offsetListener : jarOffsets) {
+			for (ListenerInterest interested : offsetListener.listeners) {
+				if (interested.action == ResourceScanListener.InterestAction.CHANGES && (interested.delivered || !deliveredOnly)) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private boolean onlyDeliveredChangeListeners() {
+		boolean found = false;
+
+		for (OffsetListener offsetListener : jarOffsets) {
+			for (ListenerInterest interested : offsetListener.listeners) {
+				if (!interested.changesOnly()) {
+					return false;
+				}
+
+				found = true;
+			}
+		}
+
+		return found;
+	}
+
+	private String resourceName(int offsetStrip, String name) {
+		if (offsetStrip > 0) {
+			name = name.substring(offsetStrip);
+		}
+
+		if (name.endsWith("/")) {
+			name = name.substring(0, name.length() - 1);
+		}
+
+		return name;
+	}
+
+	public void fireListeners(List<ResourceScanListener.ScanResource> scanResources, OffsetListener offsetListener, JarFile jf) {
+		JarSource source = new JarSource(jf);
+
+		try {
+			fireListeners(scanResources, offsetListener, source);
+		} finally {
+			source.close();
+		}
+	}
+
+	private void fireListeners(List<ResourceScanListener.ScanResource> scanResources, OffsetListener offsetListener, ReadAhead.Source source) {
+		if (scanResources.size() > 0) {
+
+			for (ListenerInterest interested : offsetListener.listeners) {
+				List<ResourceScanListener.ScanResource> offered = offeredTo(interested, scanResources);
+
+				if (offered.size() == 0) {
+					continue;
+				}
+
+				deliver(interested, offered, source);
+			}
+
+			clearBatch(scanResources);
+		}
+	}
+
+	/**
+	 * Delivers a batch under the scan's listener guard, so a slow or failing listener can be cut off.
+	 */
+	private void deliver(final ListenerInterest interested, List<ResourceScanListener.ScanResource> offered, final ReadAhead.Source source) {
+		final ListenerGuard guard = listenerGuard();
+
+		// the batch is reused once we move on, and an abandoned listener could still be looking at it
+		final List<ResourceScanListener.ScanResource> batch = guard.isolating() ? new ArrayList<>(offered) : offered;
+
+		try {
+			guard.run(interested.listener, new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					deliverResources(interested, batch, source, guard);
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to ask listener for resources", e);
+		}
+	}
+
+	/**
+	 * Asks the listener which of the offered resources it wants and delivers them, reading ahead if we have been asked to.
+	 * Delivery stops as soon as the guard gives up on the listener - its batch may have been abandoned, and the source
+	 * closed, while it was still going.
+	 */
+	private void deliverResources(ListenerInterest interested, List<ResourceScanListener.ScanResource> offered, ReadAhead.Source source,
+	                              ListenerGuard guard) throws Exception {
+		long started = System.nanoTime();
+		List<ResourceScanListener.ScanResource> desired = interested.listener.resource(offered);
+		scanner().batchSizer().record(classpath == null ? null : classpath.sizing(), interested.listener, offered, System.nanoTime() - started);
+
+		if (desired == null || desired.size() == 0) {
+			return;
+		}
+
+		ReadAhead readAhead = scanner().readAhead(desired, source);
+
+		try {
+			for (int i = 0; i < desired.size(); i++) {
+				if (Thread.currentThread().isInterrupted() || guard.isDisabled(interested.listener)) {
+					return;
+				}
+
+				ResourceScanListener.ScanResource desire = desired.get(i);
+				InputStream stream = readAhead == null ? source.open(desire) : readAhead.open(i);
+
+				if (stream != null) {
+					try {
+						interested.listener.deliver(desire, stream);
+					} finally {
+						stream.close();
+					}
+				}
+			}
+		} finally {
+			if (readAhead != null) {
+				readAhead.close();
+			}
+		}
+	}
+
+	private static final ReadAhead.Source fileSource = new ReadAhead.Source() {
+		@Override
+		public InputStream open(ResourceScanListener.ScanResource resource) throws IOException {
+			return resource.file.isFile() ? new FileInputStream(resource.file) : null;
+		}
+
+		@Override
+		public long size(ResourceScanListener.ScanResource resource) {
+			return resource.file.isFile() ? resource.file.length() : -1;
+		}
+	};
+
+	/**
+	 * Reads the entries of our jar for delivery. Where we can, the content is read straight from the file using the
+	 * scanner's pooled inflaters, otherwise through the jar file - which is only opened if someone wants something. Once
+	 * closed it opens nothing more, so a listener we have given up on can't leave a jar open behind us.
+	 */
+	private class JarSource implements ReadAhead.Source {
+		private JarFile jf;
+		private boolean ownsJar;
+		private JarEntryReader reader;
+		private JarHandleCache handles;
+		private JarHandleCache.Handle handle;
+		private boolean closed;
+
+		/**
+		 * @param jf - the jar file, already open, or null to open (or borrow) our own if it is needed
+		 */
+		JarSource(JarFile jf) {
+			this.jf = jf;
+		}
+
+		/**
+		 * @return the kept open handle for our jar, or null if the scanner opens jars each time
+		 */
+		private synchronized JarHandleCache.Handle handle() {
+			if (handle == null && !closed && scanner().jarHandles() != null) {
+				handles = scanner().jarHandles();
+				handle = handles.acquire(classesSource);
+			}
+
+			return handle;
+		}
+
+		private synchronized JarFile jar() throws IOException {
+			if (closed) {
+				throw new IOException("The entries of " + classesSource + " are no longer being read");
+			}
+
+			if (jf == null) {
+				JarHandleCache.Handle kept = handle();
+
+				if (kept != null) {
+					jf = kept.jar();
+				} else {
+					jf = new JarFile(classesSource);
+					ownsJar = true;
+				}
+			}
+
+			return jf;
+		}
+
+		private synchronized JarEntryReader reader() {
+			InflaterPool pool = scanner().inflaterPool();
+
+			// a specialist may hand us some other (e.g. nested) jar file, which we can't read directly
+			if (reader == null && !closed && pool != null && (jf == null || classesSource.getPath().equals(jf.getName()))) {
+				JarHandleCache.Handle kept = handle();
+
+				reader = kept != null ? kept.reader(pool) : new JarEntryReader(classesSource, pool);
+			}
+
+			return reader;
+		}
+
+		@Override
+		public InputStream open(ResourceScanListener.ScanResource resource) throws IOException {
+			JarEntryReader entryReader = reader();
+
+			if (entryReader != null) {
+				InputStream stream = entryReader.open(resource.entryIndex, resource.entry.getName());
+
+				if (stream != null) {
+					return stream;
+				}
+			}
+
+			return jar().getInputStream(resource.entry);
+		}
+
+		@Override
+		public long size(ResourceScanListener.ScanResource resource) {
+			return resource.entry.getSize();
+		}
+
+		synchronized void close() {
+			closed = true;
+
+			if (reader != null) {
+				if (handle == null) { // otherwise it belongs to the handle
+					reader.close();
+				}
+
+				reader = null;
+			}
+
+			if (ownsJar && jf != null) {
+				try {
+					jf.close();
+				} catch (IOException e) {
+					log.error("Unable to close jar file {}", classesSource);
+				}
+
+				jf = null;
+				ownsJar = false;
+			}
+
+			if (handle != null) {
+				handles.release(handle);
+				handle = null;
+			}
+		}
+	}
+
+	/**
+	 * A run of entries that all belong to the same jar offset, no longer than a single batch.
+	 */
+	static class EntryRange {
+		final OffsetListener offsetListener;
+		final int from;
+		final int to;
+		Future<List<ResourceScanListener.ScanResource>> resources;
+
+		EntryRange(OffsetListener offsetListener, int from, int to) {
+			this.offsetListener = offsetListener;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * For huge jars - the central directory is split into slices that the workers make the entries (and entry table) of,
+	 * put back together in jar order. The entries are then split into ranges that never cross a jar offset, the batches
+	 * for each range are built by the workers and each listener then works through the ranges in order on its own worker.
+	 * So every listener still sees its batches in jar order and with the right offset, one batch at a time, but
+	 * different listeners (and the enumerating and building of batches) proceed in parallel. A single listener's own
+	 * calls are still one after another - that is what it is promised.
+	 */
+	protected void extractJarEntriesInParallel(final JarFile jf, ExecutorService executor) {
+		EntryTable table = new EntryTable(scanner().getEntryStorage());
+		final List<JarEntry> entries = enumerateInParallel(jf, table, executor);
+		final List<EntryRange> ranges = new ArrayList<>();
+		int batchSize = scanner().batchSize();
+
+		String lastPrefix = "";
+		OffsetListener offsetListener = onlyNullJarOffset ? jarOffsets.iterator().next() : null;
+		int start = 0;
+
+		final MultiRelease multiRelease = scanner().getMultiReleaseVersion() > 0 && MultiRelease.hasVersionedEntries(table) && MultiRelease.isMultiRelease(jf)
+			? MultiRelease.resolve(table, scanner().getMultiReleaseVersion()) : null;
+
+		for (int i = 0; i < entries.size(); i++) {
+			String name = multiRelease == null || multiRelease.name(i) == null ? entries.get(i).getName() : multiRelease.name(i);
+			OffsetListener entryListener = offsetListener;
+
+			if (!onlyNullJarOffset && (lastPrefix.length() == 0 || !name.startsWith(lastPrefix))) {
+				entryListener = findOffsetListener(name);
+
+				lastPrefix = entryListener == null ? "" : entryListener.jarOffset;
+			}
+
+			if (entryListener != offsetListener || i - start >= batchSize) {
+				addEntryRange(ranges, offsetListener, start, i, entries, multiRelease, executor);
+
+				offsetListener = entryListener;
+				start = i;
+			}
+		}
+
+		addEntryRange(ranges, offsetListener, start, entries.size(), entries, multiRelease, executor);
+
+		// the batches were all queued first, so a listener waiting on one can never hold up the building of them
+		Set<ResourceScanListener> listeners = new LinkedHashSet<>();
+		for (EntryRange range : ranges) {
+			for (ListenerInterest interested : range.offsetListener.listeners) {
+				if (isFiring(interested)) {
+					listeners.add(interested.listener);
+				}
+			}
+		}
+
+		final JarSource source = new JarSource(jf);
+		List<Future<Void>> lanes = new ArrayList<>();
+		for (final ResourceScanListener listener : listeners) {
+			lanes.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (EntryRange range : ranges) {
+						ListenerInterest interested = range.offsetListener.interestOf(listener);
+
+						if (interested != null) {
+							deliver(interested, range.resources.get(), source);
+						}
+					}
+
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<Void> lane : lanes) {
+				lane.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new RuntimeException("Interrupted while scanning " + classesSource.getAbsolutePath(), e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Unable to ask listener for resources", e.getCause());
+		} finally {
+			// lanes already running are left to finish, interrupting them could break the jar for the others
+			for (Future<Void> lane : lanes) {
+				lane.cancel(false);
+			}
+
+			source.close();
+		}
+
+		finishTrackingChanges(table.complete());
+		replaceEntryTable(table);
+	}
+
+	/**
+	 * Reads the central directory once and has the workers each make the entries of a slice of it, and a table of them,
+	 * which are then added to ours in jar order. A jar whose directory we can't read ourselves (e.g. zip64) is enumerated
+	 * by the JarFile instead.
+	 *
+	 * @return the entries, in jar order
+	 */
+	private List<JarEntry> enumerateInParallel(JarFile jf, EntryTable table, ExecutorService executor) {
+		final JarEntryReader directory = new JarEntryReader(classesSource, null);
+
+		try {
+			int count = classesSource.getPath().equals(jf.getName()) ? directoryEntries(directory) : -1;
+
+			if (count == -1 || count != jf.size()) {
+				List<JarEntry> entries = Collections.list(jf.entries());
+
+				for (JarEntry entry : entries) {
+					table.add(entry.getName(), entry.getSize(), entry.getCrc(), entry.getTime());
+				}
+
+				return entries;
+			}
+
+			final JarEntry[] entries = new JarEntry[count];
+			int sliceSize = Math.max(1, scanner().batchSize());
+			List<Future<EntryTable>> slices = new ArrayList<>();
+
+			for (int from = 0; from < count; from += sliceSize) {
+				final int sliceFrom = from;
+				final int sliceTo = Math.min(count, from + sliceSize);
+
+				slices.add(executor.submit(new Callable<EntryTable>() {
+					@Override
+					public EntryTable call() throws Exception {
+						EntryTable slice = new EntryTable();
+
+						for (int i = sliceFrom; i < sliceTo; i++) {
+							JarEntry entry = directory.entry(i);
+
+							entries[i] = entry;
+							slice.add(entry.getName(), entry.getSize(), entry.getCrc(), entry.getTime());
+						}
+
+						return slice;
+					}
+				}));
+			}
+
+			for (Future<EntryTable> slice : slices) {
+				EntryTable sliceTable = slice.get();
+
+				table.addAll(sliceTable);
+				sliceTable.release();
+			}
+
+			return Arrays.asList(entries);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new RuntimeException("Interrupted while scanning " + classesSource.getAbsolutePath(), e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Unable to read the entries of " + classesSource.getAbsolutePath(), e.getCause());
+		} finally {
+			directory.close();
+		}
+	}
+
+	/**
+	 * @return how many entries the central directory has, or -1 if we can't read it ourselves
+	 */
+	private int directoryEntries(JarEntryReader directory) {
+		try {
+			return directory.entryCount();
+		} catch (IOException e) {
+			log.debug("Unable to read the central directory of {}, leaving it to the jar file", classesSource.getAbsolutePath(), e);
+
+			return -1;
+		}
+	}
+
+	private void addEntryRange(List<EntryRange> ranges, final OffsetListener offsetListener, int from, int to, final List<JarEntry> entries,
+	                           final MultiRelease multiRelease, ExecutorService executor) {
+		if (offsetListener == null || offsetListener.listeners.size() == 0 || from == to) {
+			return;
+		}
+
+		final EntryRange range = new EntryRange(offsetListener, from, to);
+
+		range.resources = executor.submit(new Callable<List<ResourceScanListener.ScanResource>>() {
+			@Override
+			public List<ResourceScanListener.ScanResource> call() throws Exception {
+				List<ResourceScanListener.ScanResource> scanResources = new ArrayList<>(range.to - range.from);
+				int offsetStrip = offsetListener.jarOffset.length();
+
+				for (int i = range.from; i < range.to; i++) {
+					int effective = multiRelease == null ? i : multiRelease.effective(i);
+
+					if (effective != -1) {
+						String name = multiRelease == null || multiRelease.name(i) == null ? entries.get(i).getName() : multiRelease.name(i);
+
+						scanResources.add(new ResourceScanListener.ScanResource(url, entries.get(effective), resourceName(offsetStrip, name), offsetListener.interestingResource.url, effective));
+					}
+				}
+
+				return Collections.unmodifiableList(scanResources);
+			}
+		});
+
+		ranges.add(range);
+	}
+
+	/**
+	 * Finds the name of the matching offset listener for this resource
+	 *
+	 * @param name - the name found inside the entry
+	 * @return - the matching listener. If an "empty" one is found then use that as last resort.
+	 */
+	private OffsetListener findOffsetListener(String name) {
+		OffsetListener emptyListener = null;
+
+		for (OffsetListener listener : jarOffsets) {
+			if (listener.jarOffset.length() == 0) {
+				emptyListener = listener;
+			} else if (name.startsWith(listener.jarOffset)) {
+				return listener;
+			}
+		}
+
+		return emptyListener;
+	}
+
+
+	/**
+	 * The same as findOffsetListener, but looks at the entry's name in the table rather than making a String of it.
+	 */
+	OffsetListener findOffsetListener(EntryTable table, int index) {
+		OffsetListener emptyListener = null;
+
+		for (OffsetListener listener : jarOffsets) {
+			if (listener.jarOffset.length() == 0) {
+				emptyListener = listener;
+			} else if (table.startsWith(index, listener.jarOffsetBytes())) {
+				return listener;
+			}
+		}
+
+		return emptyListener;
+	}
+
+	/**
+	 * Looks through any offsets and removes any listeners that asked to listen to this
+	 * resource only once.
+	 */
+	public void removeSingleFireListeners() {
 		for (OffsetListener listener : jarOffsets) {
 			List<ListenerInterest> deleteds = new ArrayList<>();
 
@@ -375,6 +1459,27 @@ public class ClasspathResource {
 		this.url = url;
 	}
 
+	void setScanner(ClasspathScanner scanner) {
+		this.scanner = scanner;
+	}
+
+	ClasspathScanner scanner() {
+		return scanner == null ? ClasspathScanner.getInstance() : scanner;
+	}
+
+	void setClasspath(ClasspathScanner.Classpath classpath) {
+		this.classpath = classpath;
+	}
+
+	/**
+	 * @return the guard of our classpath's scan, or the scanner's if we aren't part of one
+	 */
+	private ListenerGuard listenerGuard() {
+		ClasspathScanner.Classpath cp = classpath;
+
+		return cp == null ? scanner().listenerGuard() : cp.listenerGuard();
+	}
+
 	public URL getUrl() {
 		return url;
 	}
@@ -383,6 +1488,339 @@ public class ClasspathResource {
 		return classesSource;
 	}
 
+	/**
+	 * Captures the current state of this resource. If the jar hasn't changed since we last enumerated it, the entries we
+	 * already have are shared rather than read again.
+	 *
+	 * @return the state, the caller owns a reference to the entries and must release it
+	 */
+	public ClasspathSnapshot.ResourceState snapshot() {
+		ResourceIdentity current = ResourceIdentity.of(classesSource);
+		EntryTable table = entryTable;
+
+		if (table != null && current != null && current.equals(identity)) {
+			table = table.retain();
+		} else {
+			table = readEntries();
+		}
+
+		return new ClasspathSnapshot.ResourceState(url, classesSource, current, table);
+	}
+
+	/**
+	 * @return the entries as they are now (retained, so release them), using the table we have if the jar hasn't changed
+	 */
+	EntryTable currentEntries() {
+		if (entryTable != null && classesSource.isFile() && tableLength == classesSource.length() && tableLastModified == classesSource.lastModified()) {
+			return entryTable.retain();
+		}
+
+		return readEntries();
+	}
+
+	/**
+	 * Searches the content of every entry the search wants, in batches that run on the executor if there is one. The jar
+	 * is closed when the last batch finishes.
+	 *
+	 * @return the batches still running
+	 */
+	List<Future<Void>> search(final ContentSearch search, ExecutorService executor) throws Exception {
+		List<List<ResourceScanListener.ScanResource>> batches = new ArrayList<>();
+		List<ResourceScanListener.ScanResource> batch = new ArrayList<>();
+		EntryTable table = currentEntries();
+		int batchSize = scanner().batchSize();
+
+		try {
+			for (int i = 0; i < table.size(); i++) {
+				if (table.isDirectory(i)) {
+					continue;
+				}
+
+				String entryName = table.name(i);
+				String jarOffset = jarOffsetOf(entryName);
+
+				if (jarOffset == null) {
+					continue; // not inside any of the offsets we were given, so not on the classpath
+				}
+
+				String name = resourceName(jarOffset.length(), entryName);
+
+				if (search.wants(name)) {
+					batch.add(classesSource.isDirectory() ? new ResourceScanListener.ScanResource(url, new File(classesSource, entryName), name)
+						: new ResourceScanListener.ScanResource(url, jarEntry(table, i), name, jarOffsetUrl(entryName), i));
+
+					if (batch.size() >= batchSize) {
+						batches.add(batch);
+						batch = new ArrayList<>();
+					}
+				}
+			}
+		} finally {
+			table.release();
+		}
+
+		if (batch.size() > 0) {
+			batches.add(batch);
+		}
+
+		List<Future<Void>> running = new ArrayList<>();
+
+		if (batches.isEmpty()) {
+			return running;
+		}
+
+		final JarSource jarSource = classesSource.isDirectory() ? null : new JarSource(null);
+		final ReadAhead.Source source = jarSource == null ? fileSource : jarSource;
+		if (executor == null) {
+			try {
+				for (List<ResourceScanListener.ScanResource> searching : batches) {
+					searchBatch(search, source, searching);
+				}
+			} finally {
+				if (jarSource != null) {
+					jarSource.close();
+				}
+			}
+
+			return running;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(batches.size());
+
+		for (int submitted = 0; submitted < batches.size(); submitted++) {
+			final List<ResourceScanListener.ScanResource> searching = batches.get(submitted);
+
+			Callable<Void> searchBatch = new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						searchBatch(search, source, searching);
+					} finally {
+						if (remaining.decrementAndGet() == 0 && jarSource != null) {
+							jarSource.close();
+						}
+					}
+
+					return null;
+				}
+			};
+
+			try {
+				running.add(executor.submit(searchBatch));
+			} catch (RuntimeException e) {
+				// the batches that never made it in can't close the jar, so count them off here
+				if (remaining.addAndGet(submitted - batches.size()) == 0 && jarSource != null) {
+					jarSource.close();
+				}
+
+				throw e;
+			}
+		}
+
+		return running;
+	}
+
+	private static void searchBatch(ContentSearch search, ReadAhead.Source source, List<ResourceScanListener.ScanResource> searching) throws IOException {
+		for (ResourceScanListener.ScanResource resource : searching) {
+			InputStream stream = source.open(resource);
+
+			if (stream != null) {
+				search.search(resource, stream);
+			}
+		}
+	}
+
+	/**
+	 * The descriptors of this resource, read the first time they are asked for and kept until the entries are enumerated
+	 * again (or the jar changes), so scans that nobody asks for descriptors after don't pay for them.
+	 */
+	public List<DescriptorIndex.Descriptor> getDescriptors() {
+		List<DescriptorIndex.Descriptor> found = descriptors;
+
+		if (found != null && classesSource.isFile() && tableLength == classesSource.length() && tableLastModified == classesSource.lastModified()) {
+			return found;
+		}
+
+		EntryTable table = currentEntries();
+		JarSource jarSource = classesSource.isDirectory() ? null : new JarSource(null);
+
+		try {
+			found = readDescriptors(table, jarSource == null ? fileSource : jarSource);
+		} finally {
+			if (jarSource != null) {
+				jarSource.close();
+			}
+
+			table.release();
+		}
+
+		if (table == entryTable) {
+			descriptors = found;
+		}
+
+		return found;
+	}
+
+	/**
+	 * @return true if the classpath points inside this jar (e.g. WEB-INF/classes) rather than at the whole of it
+	 */
+	boolean hasNestedJarOffsets() {
+		for (OffsetListener offsetListener : jarOffsets) {
+			if (offsetListener.jarOffset.length() > 0) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the jar offset this entry is beneath ("" if the whole jar is on the classpath), or null if it isn't beneath any
+	 */
+	String jarOffsetOf(String entryName) {
+		if (jarOffsets.isEmpty()) {
+			return "";
+		}
+
+		OffsetListener offsetListener = findOffsetListener(entryName);
+
+		return offsetListener == null ? null : offsetListener.jarOffset;
+	}
+
+	/**
+	 * @return the URL on the classpath that this entry was found through
+	 */
+	URL jarOffsetUrl(String entryName) {
+		OffsetListener offsetListener = jarOffsets.isEmpty() ? null : findOffsetListener(entryName);
+
+		return offsetListener == null ? url : offsetListener.interestingResource.url;
+	}
+
+	private List<String> jarOffsetNames() {
+		List<String> names = new ArrayList<>();
+
+		for (OffsetListener offsetListener : jarOffsets) {
+			names.add(offsetListener.jarOffset);
+		}
+
+		return names;
+	}
+
+	private static boolean startsWithAny(EntryTable table, int index, List<byte[]> prefixes) {
+		for (byte[] prefix : prefixes) {
+			if (table.startsWith(index, prefix)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private List<DescriptorIndex.Descriptor> readDescriptors(EntryTable table, ReadAhead.Source source) {
+		Collection<String> wanted = scanner().getIndexedDescriptors();
+		List<DescriptorIndex.Descriptor> found = new ArrayList<>();
+		List<byte[]> descriptorPrefixes = new ArrayList<>();
+
+		// so we only make names of the few entries that might be descriptors
+		for (String offset : jarOffsets.isEmpty() ? Collections.singletonList("") : jarOffsetNames()) {
+			for (String descriptor : wanted) {
+				descriptorPrefixes.add((offset + descriptor).getBytes(EntryTable.UTF8));
+			}
+		}
+
+		for (int i = 0; i < table.size(); i++) {
+			if (!startsWithAny(table, i, descriptorPrefixes)) {
+				continue;
+			}
+
+			String entryName = table.name(i);
+			String jarOffset = jarOffsetOf(entryName);
+
+			if (jarOffset == null) {
+				continue; // not inside any of the offsets we were given
+			}
+
+			String name = entryName.substring(jarOffset.length());
+
+			if (!DescriptorIndex.isDescriptor(name, wanted)) {
+				continue;
+			}
+
+			ResourceScanListener.ScanResource resource = classesSource.isDirectory()
+				? new ResourceScanListener.ScanResource(url, new File(classesSource, entryName), name)
+				: new ResourceScanListener.ScanResource(url, jarEntry(table, i), name, jarOffsetUrl(entryName), i);
+
+			try {
+				InputStream stream = source.open(resource);
+
+				if (stream != null) {
+					found.add(new DescriptorIndex.Descriptor(url, entryName, name, ReadAhead.readFully(stream, source.size(resource))));
+				}
+			} catch (IOException e) {
+				log.error("Unable to read {} from {}", entryName, classesSource.getAbsolutePath(), e);
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Reads all of the entries without telling any listeners about them.
+	 */
+	protected EntryTable readEntries() {
+		EntryTable table = new EntryTable(scanner().getEntryStorage());
+
+		if (classesSource.isDirectory()) {
+			readDirectoryEntries(table, classesSource, "");
+		} else {
+			JarSource source = new JarSource(null);
+
+			try {
+				Enumeration<JarEntry> entries = source.jar().entries();
+
+				while (entries.hasMoreElements()) {
+					JarEntry entry = entries.nextElement();
+
+					table.add(entry.getName(), entry.getSize(), entry.getCrc(), entry.getTime());
+				}
+			} catch (IOException e) {
+				log.error("Unable to read entries of {}", classesSource.getAbsolutePath());
+			} finally {
+				source.close();
+			}
+		}
+
+		return table.complete();
+	}
+
+	private void readDirectoryEntries(EntryTable table, File dir, String prefix) {
+		File[] files = dir.listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					if (!file.getName().startsWith(".")) {
+						table.add(prefix + file.getName() + "/", -1, -1, file.lastModified());
+
+						readDirectoryEntries(table, file, prefix + file.getName() + "/");
+					}
+				} else {
+					table.add(prefix + file.getName(), file.length(), -1, file.lastModified());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Not retained for the caller, so it must not be kept - a rescan or release gives its storage back, and off-heap
+	 * storage is freed there and then.
+	 *
+	 * @return the entries found the last time this resource was scanned, or null if no-one has been interested in it yet
+	 */
+	EntryTable getEntryTable() {
+		return entryTable;
+	}
+
 	public Set<OffsetListener> getJarOffsets() {
 		return jarOffsets;
 	}
@@ -4,9 +4,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This implements an efficient classpath scanner for URL Class Loaders
@@ -19,34 +37,215 @@ public class ClasspathScanner {
 	private static final String FILE_PREFIX = "file:";
 	private static ClasspathScanner globalScanner = new ClasspathScanner();
 
+	/**
+	 * Set this system property to true to start reading the jars on java.class.path in the background as soon as the
+	 * scanner is loaded, so it overlaps with the rest of the application starting up. It turns on entry table sharing
+	 * for the global scanner so later scans pick up what was read.
+	 */
+	public static final String PRESCAN_PROPERTY = "classpath-scanner.prescan";
+	/**
+	 * The directory the JVMs on this host share their entry tables through, see setSharedIndexDirectory.
+	 */
+	public static final String SHARED_INDEX_PROPERTY = "classpath-scanner.shared-index";
+	/**
+	 * The feature version of the running Java, e.g. 8 for 1.8 and 11 for 11 - see setMultiReleaseVersion.
+	 */
+	public static final int RUNTIME_JAVA_VERSION = MultiRelease.RUNTIME_VERSION;
+
+	/**
+	 * Runs scans started with scanInBackground and the pre-scan, one at a time.
+	 */
+	private static final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return new ScannerThread(r, "classpath-scanner-background");
+		}
+	});
+	private static Future<?> prescan;
+	/**
+	 * The tables the pre-scan read, held until a classloader with the jar on it has been scanned (or released).
+	 */
+	private static final Map<File, EntryTable> prescanned = new ConcurrentHashMap<>();
+
+	/**
+	 * Where the entry tables of the resources this scanner finds are kept.
+	 */
+	private EntryStorage entryStorage = EntryStorage.HEAP;
+
+	/**
+	 * How many worker threads a single scan may use, 1 means everything happens on the scanning thread.
+	 */
+	private int parallelism = 1;
+	/**
+	 * Jars with at least this many entries have their entries split across the workers.
+	 */
+	private int parallelEntryThreshold = 20000;
+	private ExecutorService executor;
+
+	/**
+	 * How many desired resources to read in the background ahead of the listener, 0 turns it off, and how many bytes
+	 * may be held while doing so.
+	 */
+	private int readAheadEntries = 0;
+	private long readAheadBytes = 8 * 1024 * 1024;
+	private ExecutorService readAheadExecutor;
+
+	/**
+	 * Share the entries of each jar with every other classloader that has the same jar on its classpath.
+	 */
+	private boolean shareEntryTables = false;
+	/**
+	 * Where entry tables are shared with the other JVMs on this host, null if they aren't.
+	 */
+	private volatile SharedScanIndex sharedScanIndex = System.getProperty(SHARED_INDEX_PROPERTY) == null ? null
+		: new SharedScanIndex(new File(System.getProperty(SHARED_INDEX_PROPERTY)));
+	/**
+	 * Include the URLs of the parent classloader(s) in the scan, each URL only once.
+	 */
+	private boolean includeParentClassLoaders = false;
+
+	/**
+	 * Deliver jar entries using our own pool of inflaters rather than a new one for every stream.
+	 */
+	private boolean pooledInflation = true;
+	private InflaterPool inflaterPool;
+
+	/**
+	 * How long a listener may take with one batch and with a whole scan (0 for no limit), when to complain about a slow
+	 * batch, and whether a listener that fails is just ignored from then on rather than stopping the scan.
+	 */
+	private long listenerBatchMillis = 0;
+	private long listenerScanMillis = 0;
+	private long slowListenerMillis = 1000;
+	private boolean disableFailingListeners = false;
+	private ExecutorService listenerExecutor;
+	private volatile ListenerGuard listenerGuard;
+
+	/**
+	 * The bounds the size of the batches offered to listeners is kept within, how long we would like the slowest listener
+	 * to take with a batch, roughly how much memory a batch may hold and how full the old generation can get before
+	 * batches drop to the smallest size.
+	 */
+	private int minBatchSize = 250;
+	private int maxBatchSize = 20000;
+	private long batchTargetMillis = 20;
+	private long maxBatchBytes = 16 * 1024 * 1024;
+	private double heapPressureLimit = 0.85;
+	private volatile BatchSizer batchSizer;
+	private volatile ScanMetrics lastScanMetrics;
+
+	/**
+	 * The META-INF descriptors the index gathers, names ending in / gather everything beneath them.
+	 */
+	private List<String> indexedDescriptors = DescriptorIndex.DEFAULT_DESCRIPTORS;
+
+	/**
+	 * The Java version the entries of multi-release jars are resolved for, 0 to deliver every entry as it is.
+	 */
+	private int multiReleaseVersion;
+
+	/**
+	 * Jars kept open between scans and deliveries, null if each is opened when needed and closed straight after.
+	 */
+	private JarHandleCache jarHandles;
+	private ScheduledFuture<?> jarHousekeeping;
+	private static ScheduledExecutorService housekeeper;
+
+	/**
+	 * Look for resources that are on the classpath more than once at the end of each scan, and log the conflicts.
+	 */
+	private boolean detectShadowing = false;
+
+	/**
+	 * Futures waiting for a listener's next COMPLETE notification.
+	 */
+	private final ConcurrentHashMap<ResourceScanListener, FutureTask<Void>> completions = new ConcurrentHashMap<>();
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	/**
+	 * Our workers are marked so work that is already running on one never waits on the others (which could deadlock).
+	 */
+	static class ScannerThread extends Thread {
+		ScannerThread(Runnable runnable, String name) {
+			super(runnable, name);
+			setDaemon(true);
+		}
+	}
+
 	/**
 	 * The resources from the last scan
 	 */
 	class Classpath {
 		final List<ClasspathResource> classpaths;
 		final List<ResourceScanListener> uncheckedListeners;
+		private DescriptorIndex descriptorIndex;
+		private ShadowedResources shadowedResources;
+
+		/**
+		 * The guard and batch record of the scan in progress, each classloader's scan has its own.
+		 */
+		private volatile ListenerGuard guard;
+		private volatile BatchSizer.Scan sizing;
 
 		public Classpath(List<ClasspathResource> classpaths) {
 			this.classpaths = Collections.unmodifiableList(classpaths);
 
-			this.uncheckedListeners = new ArrayList<>();
+			this.uncheckedListeners = new CopyOnWriteArrayList<>();
 			this.uncheckedListeners.addAll(allUncheckedListeners); // set it to the existing list
+
+			for(ClasspathResource resource : classpaths) {
+				resource.setClasspath(this);
+			}
+		}
+
+		/**
+		 * @return the guard of the scan in progress, or the scanner's if we aren't scanning
+		 */
+		ListenerGuard listenerGuard() {
+			ListenerGuard scanning = guard;
+
+			return scanning == null ? ClasspathScanner.this.listenerGuard() : scanning;
+		}
+
+		/**
+		 * @return the batch record of the scan in progress, or null if we aren't scanning
+		 */
+		BatchSizer.Scan sizing() {
+			return sizing;
 		}
 
-		public void askForInterest() {
-			if (uncheckedListeners.size() > 0) {
+		/**
+		 * @return the listeners that were asked
+		 */
+		public List<ResourceScanListener> askForInterest() {
+			List<ResourceScanListener> asking = new ArrayList<>(uncheckedListeners);
+
+			if (asking.size() > 0) {
 				for(ClasspathResource resource : classpaths) {
-					resource.askListeners(uncheckedListeners);
+					resource.askListeners(asking);
 				}
 			}
 
-			// clearing them allows us to all this over and over and not worry
-			uncheckedListeners.clear();
+			// clearing them allows us to all this over and over and not worry - anyone registered since stays unchecked
+			uncheckedListeners.removeAll(asking);
+
+			return asking;
 		}
 
 		public void fireListeners() {
+			fireListeners(null);
+		}
+
+		/**
+		 * @param only - only tell these listeners, or everyone if null
+		 */
+		public void fireListeners(Collection<ResourceScanListener> only) {
 			for(ClasspathResource resource : classpaths) {
-				resource.fireListeners();
+				resource.fireListeners(only);
 			}
 		}
 
@@ -56,7 +255,12 @@ public class ClasspathScanner {
 			}
 		}
 
-		public void triggerNotifications() {
+		/**
+		 * Scans the classpath, telling the listeners. Only one scan of a classpath happens at a time, so anyone arriving
+		 * during a (e.g. background) scan waits for it and then scans again with what it left - but different
+		 * classpaths are scanned at the same time, and a listener may be told about more than one of them at once.
+		 */
+		public synchronized void triggerNotifications() {
 			Set<ResourceScanListener> listeners = new HashSet<>();
 
 			for(ClasspathResource resource : classpaths) {
@@ -65,34 +269,224 @@ public class ClasspathScanner {
 
 			listeners.addAll(uncheckedListeners);
 
+			BatchSizer sizer = batchSizer();
+			guard = newListenerGuard();
+			sizing = sizer.startScan();
+			listenerGuard = null; // anyone told about things outside of a scan is also given a fresh start
+
+			try {
+				scanAndNotify(listeners);
+			} finally {
+				lastScanMetrics = sizer.metrics(sizing);
+				log.debug("classpath scan: {}", lastScanMetrics);
+
+				guard = null;
+				sizing = null;
+			}
+
+			for(ClasspathResource resource : classpaths) {
+				dropPrescanned(resource.getClassesSource());
+			}
+		}
+
+		private void scanAndNotify(Set<ResourceScanListener> listeners) {
 			notifyAction(listeners, ResourceScanListener.ScanAction.STARTING);
 
 			askForInterest();
 			fireListeners();
 
+			// listeners registered while we were scanning (e.g. a background scan) get caught up now, on their own
+			List<ResourceScanListener> late;
+			while ((late = new ArrayList<>(uncheckedListeners)).size() > 0) {
+				Set<ResourceScanListener> lateListeners = new HashSet<>(late);
+				lateListeners.removeAll(listeners);
+
+				notifyAction(lateListeners, ResourceScanListener.ScanAction.STARTING);
+				listeners.addAll(lateListeners);
+
+				fireListeners(askForInterest());
+			}
+
 			cleanListeners();
 
+			descriptorIndex = null; // anything could have changed
+			shadowedResources = null;
+
+			if (detectShadowing) {
+				reportShadowedResources(shadowedResources());
+			}
+
+			releaseInflaters();
+			closeIdleJars();
+			guard.report();
+
 			notifyAction(listeners, ResourceScanListener.ScanAction.COMPLETE);
+		}
+
+		/**
+		 * @return the descriptors of every resource on this classpath, kept until the next scan
+		 */
+		public synchronized DescriptorIndex descriptorIndex() {
+			if (descriptorIndex == null) {
+				List<List<DescriptorIndex.Descriptor>> found = new ArrayList<>();
 
+				for(ClasspathResource resource : classpaths) {
+					found.add(resource.getDescriptors());
+				}
+
+				descriptorIndex = new DescriptorIndex(found);
+			}
+
+			return descriptorIndex;
+		}
+
+		/**
+		 * @return the resources on this classpath more than once, kept until the next scan
+		 */
+		public synchronized ShadowedResources shadowedResources() {
+			if (shadowedResources == null) {
+				shadowedResources = ShadowedResources.find(classpaths);
+			}
+
+			return shadowedResources;
 		}
 
-		private void notifyAction(Set<ResourceScanListener> listeners, ResourceScanListener.ScanAction action) {
-			for(ResourceScanListener listener : listeners) {
-				listener.scanAction(action);
+		public void release() {
+			for(ClasspathResource resource : classpaths) {
+				resource.release();
+				dropPrescanned(resource.getClassesSource());
+			}
+		}
+
+		private void notifyAction(Set<ResourceScanListener> listeners, final ResourceScanListener.ScanAction action) {
+			for(final ResourceScanListener listener : listeners) {
+				try {
+					guard.call(listener, new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							listener.scanAction(action);
+							return null;
+						}
+					});
+				} catch (Exception e) {
+					throw new RuntimeException("Failed to tell listener " + listener.getClass().getName() + " the scan is " + action, e);
+				}
+
+				if (action == ResourceScanListener.ScanAction.COMPLETE) {
+					FutureTask<Void> completion = completions.remove(listener);
+
+					if (completion != null) {
+						completion.run();
+					}
+				}
 			}
 		}
 	}
 
-	public static Map<URLClassLoader, Classpath> resources = new HashMap<>();
-	protected static List<ResourceScanListener> allUncheckedListeners = new ArrayList<>();
+	public static Map<URLClassLoader, Classpath> resources = new ConcurrentHashMap<>();
+	protected static List<ResourceScanListener> allUncheckedListeners = new CopyOnWriteArrayList<>();
+
+	static {
+		if (Boolean.getBoolean(PRESCAN_PROPERTY)) {
+			globalScanner.setShareEntryTables(true);
+
+			prescan = backgroundExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					prescanSystemClasspath();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads the entries of every jar on java.class.path into the shared entry tables.
+	 */
+	static void prescanSystemClasspath() {
+		String classpath = System.getProperty("java.class.path", "");
+
+		for(String path : classpath.split(File.pathSeparator)) {
+			File jar = new File(path);
+
+			if (jar.isFile()) {
+				EntryTable table = SharedEntryTables.acquire(jar);
+
+				if (table == null) {
+					ClasspathResource resource = new ClasspathResource(jar, null);
+					resource.setScanner(globalScanner);
+
+					table = resource.sharedEntries();
+
+					if (table == null) {
+						table = resource.readEntries();
+						resource.shareEntries(table);
+					}
+
+					SharedEntryTables.share(jar, table);
+				}
+
+				EntryTable previous = prescanned.put(jar.getAbsoluteFile(), table); // hold onto it until someone uses it
+
+				if (previous != null) { // on the classpath twice
+					previous.release();
+				}
+			}
+		}
+
+		log.debug("classpath scan: pre-scanned {} jars", prescanned.size());
+	}
+
+	/**
+	 * Lets go of the pre-scan's table for this jar, as whoever wanted it now has their own.
+	 */
+	static void dropPrescanned(File jar) {
+		if (!prescanned.isEmpty()) {
+			EntryTable table = prescanned.remove(jar.getAbsoluteFile());
+
+			if (table != null) {
+				table.release();
+			}
+		}
+	}
+
+	static boolean isPrescanned(File jar) {
+		return prescanned.containsKey(jar.getAbsoluteFile());
+	}
+
+	/**
+	 * Waits for the pre-scan (if there is one) so a scan uses its results rather than reading the same jars again.
+	 */
+	private static void awaitPrescan() {
+		Future<?> running = prescan;
+
+		if (running != null && !(Thread.currentThread() instanceof ScannerThread)) {
+			try {
+				running.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				log.error("classpath pre-scan failed", e.getCause());
+			}
+		}
+	}
 
 	public static ClasspathScanner getInstance() {
 		return globalScanner;
 	}
 
 	public static void releaseAllResources() {
-		allUncheckedListeners = new ArrayList<>();
-		resources = new HashMap<>();
+		for(Classpath cp : resources.values()) {
+			cp.release();
+		}
+
+		allUncheckedListeners = new CopyOnWriteArrayList<>();
+		resources = new ConcurrentHashMap<>();
+
+		for(File jar : prescanned.keySet()) {
+			dropPrescanned(jar);
+		}
+
+		SharedEntryTables.purge();
 		System.gc(); // try and force a gc, probably ignored
 	}
 
@@ -101,6 +495,385 @@ public class ClasspathScanner {
 		releaseAllResources();
 	}
 
+	/**
+	 * Forgets everything known about this classloader's classpath and gives back any (off-heap) storage held for it. This
+	 * should be called when the classloader is discarded (e.g. a webapp is undeployed).
+	 *
+	 * @param loader - the classloader that was scanned
+	 */
+	public static void release(ClassLoader loader) {
+		Classpath cp = resources.remove(loader);
+
+		if (cp != null) {
+			cp.release();
+		}
+
+		SharedEntryTables.purge();
+	}
+
+	public EntryStorage getEntryStorage() {
+		return entryStorage;
+	}
+
+	/**
+	 * Determines where the entry tables for resources found from now on are stored. Use DIRECT or MAPPED for very large
+	 * classpaths to keep them out of the heap.
+	 */
+	public void setEntryStorage(EntryStorage entryStorage) {
+		this.entryStorage = entryStorage;
+	}
+
+	public boolean isPooledInflation() {
+		return pooledInflation;
+	}
+
+	/**
+	 * By default jar entries are read straight from the file with a pool of inflaters owned by the scanner, which is
+	 * emptied at the end of each scan. Turn this off to have every entry read through the JarFile instead (e.g. if
+	 * you need jar signatures verified as entries are read).
+	 */
+	public void setPooledInflation(boolean pooledInflation) {
+		this.pooledInflation = pooledInflation;
+	}
+
+	/**
+	 * @return the pool to inflate entries with, or null if each should be read through its JarFile
+	 */
+	synchronized InflaterPool inflaterPool() {
+		if (!pooledInflation) {
+			return null;
+		}
+
+		if (inflaterPool == null) {
+			inflaterPool = new InflaterPool(Math.max(parallelism * 2, readAheadEntries + 2));
+		}
+
+		return inflaterPool;
+	}
+
+	synchronized void releaseInflaters() {
+		if (inflaterPool != null) {
+			inflaterPool.release();
+		}
+	}
+
+	public boolean isShareEntryTables() {
+		return shareEntryTables;
+	}
+
+	/**
+	 * When many classloaders have the same jars (e.g. webapps in a container), enumerate each jar only once and share
+	 * the entries between them. The jar is then only opened if a listener wants something from it.
+	 */
+	public void setShareEntryTables(boolean shareEntryTables) {
+		this.shareEntryTables = shareEntryTables;
+	}
+
+	public File getSharedIndexDirectory() {
+		SharedScanIndex index = sharedScanIndex;
+
+		return index == null ? null : index.getDirectory();
+	}
+
+	/**
+	 * Shares the entries of each jar with the other JVMs on this host through this directory. The first JVM to go
+	 * through a jar writes its entries there and the rest map them rather than enumerating the jar themselves - so with
+	 * many JVMs started from the same image only one of them pays for the scan. Jars are recognised by their path,
+	 * length, modification time and file key, anything that has changed is enumerated (and written) again.
+	 *
+	 * It can also be set with the classpath-scanner.shared-index system property, which the pre-scan uses.
+	 *
+	 * @param directory - the shared directory, created if need be, or null to stop sharing
+	 */
+	public void setSharedIndexDirectory(File directory) {
+		this.sharedScanIndex = directory == null ? null : new SharedScanIndex(directory);
+	}
+
+	SharedScanIndex sharedScanIndex() {
+		return sharedScanIndex;
+	}
+
+	public boolean isIncludeParentClassLoaders() {
+		return includeParentClassLoaders;
+	}
+
+	/**
+	 * Also scan the URLs of any parent URL classloaders (parents first), ignoring any URL found more than once.
+	 */
+	public void setIncludeParentClassLoaders(boolean includeParentClassLoaders) {
+		this.includeParentClassLoaders = includeParentClassLoaders;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Allows a scan to use this many worker threads. Listeners may then be called from a worker thread, but a listener
+	 * is never called by more than one thread at a time and always sees its batches in order.
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+
+		this.parallelism = parallelism;
+
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+
+		if (readAheadExecutor != null) {
+			readAheadExecutor.shutdown();
+			readAheadExecutor = null;
+		}
+	}
+
+	public int getParallelEntryThreshold() {
+		return parallelEntryThreshold;
+	}
+
+	public void setParallelEntryThreshold(int parallelEntryThreshold) {
+		this.parallelEntryThreshold = parallelEntryThreshold;
+	}
+
+	/**
+	 * @return the workers to use, or null if the work should be done on this thread
+	 */
+	synchronized ExecutorService parallelExecutor() {
+		if (parallelism == 1 || Thread.currentThread() instanceof ScannerThread) {
+			return null;
+		}
+
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+
+			executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new ScannerThread(r, "classpath-scanner-" + count.incrementAndGet());
+				}
+			});
+		}
+
+		return executor;
+	}
+
+	public int getReadAheadEntries() {
+		return readAheadEntries;
+	}
+
+	public long getReadAheadBytes() {
+		return readAheadBytes;
+	}
+
+	/**
+	 * Once a listener says which resources it wants, read (and inflate) up to this many of them in the background while
+	 * it deals with the one before, holding no more than byteBudget bytes at a time.
+	 *
+	 * @param entries - how far to read ahead, 0 to turn it off
+	 * @param byteBudget - the most bytes to hold in memory for each listener being delivered to
+	 */
+	public void setReadAhead(int entries, long byteBudget) {
+		this.readAheadEntries = entries;
+		this.readAheadBytes = byteBudget;
+	}
+
+	/**
+	 * @return something to read ahead of the listener for this list, or null if it isn't worth it
+	 */
+	ReadAhead readAhead(List<ResourceScanListener.ScanResource> desired, ReadAhead.Source source) {
+		if (readAheadEntries == 0 || desired.size() < 2) {
+			return null;
+		}
+
+		return new ReadAhead(desired, source, readAheadExecutor(), readAheadEntries, readAheadBytes);
+	}
+
+	private synchronized ExecutorService readAheadExecutor() {
+		if (readAheadExecutor == null) {
+			final AtomicInteger count = new AtomicInteger();
+
+			readAheadExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new ScannerThread(r, "classpath-scanner-read-ahead-" + count.incrementAndGet());
+				}
+			});
+		}
+
+		return readAheadExecutor;
+	}
+
+	public long getListenerBatchMillis() {
+		return listenerBatchMillis;
+	}
+
+	public long getListenerScanMillis() {
+		return listenerScanMillis;
+	}
+
+	/**
+	 * Limits how long any one listener can hold up a scan. A listener that takes longer than batchMillis with one batch of
+	 * resources (it is interrupted) or longer than scanMillis altogether is logged and told nothing more in that scan.
+	 * Batches are run on their own thread when there is a batch limit.
+	 *
+	 * @param batchMillis - the most time a listener can have with one batch, 0 for no limit
+	 * @param scanMillis - the most time a listener can have over the whole scan, 0 for no limit
+	 */
+	public void setListenerDeadlines(long batchMillis, long scanMillis) {
+		this.listenerBatchMillis = batchMillis;
+		this.listenerScanMillis = scanMillis;
+	}
+
+	public long getSlowListenerMillis() {
+		return slowListenerMillis;
+	}
+
+	/**
+	 * Any batch a listener takes longer than this with is logged as a warning, 0 turns it off.
+	 */
+	public void setSlowListenerMillis(long slowListenerMillis) {
+		this.slowListenerMillis = slowListenerMillis;
+	}
+
+	public boolean isDisableFailingListeners() {
+		return disableFailingListeners;
+	}
+
+	/**
+	 * Normally a listener throwing an exception stops the scan. Turn this on to log it and carry on without that listener
+	 * instead.
+	 */
+	public void setDisableFailingListeners(boolean disableFailingListeners) {
+		this.disableFailingListeners = disableFailingListeners;
+	}
+
+	public int getMinBatchSize() {
+		return minBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Listeners are offered resources in batches that start at ClasspathResource.MAX_RESOURCES and grow while every
+	 * listener gets through them quickly and shrink when one is slow (or the heap is nearly full). Setting both to the
+	 * same size fixes it.
+	 */
+	public void setBatchSizes(int minBatchSize, int maxBatchSize) {
+		if (minBatchSize < 1 || maxBatchSize < minBatchSize) {
+			throw new IllegalArgumentException("Batch sizes must be at least 1 and the maximum no smaller than the minimum");
+		}
+
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.batchSizer = null;
+	}
+
+	public long getBatchTargetMillis() {
+		return batchTargetMillis;
+	}
+
+	/**
+	 * How long we would like the slowest listener's resource() to take with one batch.
+	 */
+	public void setBatchTargetMillis(long batchTargetMillis) {
+		this.batchTargetMillis = batchTargetMillis;
+		this.batchSizer = null;
+	}
+
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * Roughly how much memory a batch (which a listener may keep) can hold.
+	 */
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		this.batchSizer = null;
+	}
+
+	public double getHeapPressureLimit() {
+		return heapPressureLimit;
+	}
+
+	/**
+	 * Once more than this fraction of the old generation is in use, batches drop to the smallest size.
+	 */
+	public void setHeapPressureLimit(double heapPressureLimit) {
+		this.heapPressureLimit = heapPressureLimit;
+		this.batchSizer = null;
+	}
+
+	/**
+	 * @return the batch sizes and listener timings of the last scan to finish, null if there hasn't been one
+	 */
+	public ScanMetrics getLastScanMetrics() {
+		return lastScanMetrics;
+	}
+
+	BatchSizer batchSizer() {
+		BatchSizer sizer = batchSizer;
+
+		return sizer == null ? createBatchSizer() : sizer;
+	}
+
+	private synchronized BatchSizer createBatchSizer() {
+		if (batchSizer == null) {
+			batchSizer = new BatchSizer(minBatchSize, maxBatchSize, batchTargetMillis, maxBatchBytes, heapPressureLimit);
+		}
+
+		return batchSizer;
+	}
+
+	/**
+	 * @return how many resources to offer listeners at a time
+	 */
+	int batchSize() {
+		return batchSizer().batchSize();
+	}
+
+	/**
+	 * @return a guard that times listeners afresh, for a new scan
+	 */
+	ListenerGuard newListenerGuard() {
+		return new ListenerGuard(listenerBatchMillis, listenerScanMillis, slowListenerMillis, disableFailingListeners,
+			listenerBatchMillis > 0 ? listenerExecutor() : null);
+	}
+
+	/**
+	 * @return the guard for listeners told about things outside of a classpath's scan
+	 */
+	ListenerGuard listenerGuard() {
+		ListenerGuard guard = listenerGuard;
+
+		if (guard == null) {
+			guard = listenerGuard = newListenerGuard();
+		}
+
+		return guard;
+	}
+
+	private synchronized ExecutorService listenerExecutor() {
+		if (listenerExecutor == null) {
+			final AtomicInteger count = new AtomicInteger();
+
+			// a listener that won't stop keeps its thread, so this can't be a fixed size
+			listenerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new ScannerThread(r, "classpath-scanner-listener-" + count.incrementAndGet());
+				}
+			});
+		}
+
+		return listenerExecutor;
+	}
+
 	public void registerResourceScanner(ResourceScanListener listener) {
 		for(Classpath cp : resources.values()) {
 			cp.uncheckedListeners.add(listener);
@@ -113,35 +886,91 @@ public class ClasspathScanner {
 		return scan(loader, true);
 	}
 
+	/**
+	 * Starts a scan on a background thread and returns immediately. Listeners registered while it is running are
+	 * caught up before it completes, use whenComplete to find out when a particular listener has been told everything.
+	 *
+	 * @param loader - the URL classloader to scan
+	 * @return the resources, once the scan (and all notifications) are complete
+	 */
+	public Future<List<ClasspathResource>> scanInBackground(final ClassLoader loader) {
+		return backgroundExecutor.submit(new Callable<List<ClasspathResource>>() {
+			@Override
+			public List<ClasspathResource> call() throws Exception {
+				return scan(loader);
+			}
+		});
+	}
+
+	/**
+	 * @param listener - a registered listener
+	 * @return a future that completes the next time this listener is sent ScanAction.COMPLETE
+	 */
+	public Future<Void> whenComplete(ResourceScanListener listener) {
+		FutureTask<Void> completion = new FutureTask<>(NOTHING, null);
+		FutureTask<Void> existing = completions.putIfAbsent(listener, completion);
+
+		return existing == null ? completion : existing;
+	}
+
 	public List<ClasspathResource> scan(ClassLoader loader, boolean triggerNotification) {
 		if (!URLClassLoader.class.isInstance(loader)) {
 			throw new RuntimeException("Attempted to scan without using a URL Class Loader");
 		}
 
-		Classpath cpResources = resources.get((URLClassLoader)loader);
-		if (cpResources == null) {
+		awaitPrescan();
 
-			Map<String, ClasspathResource> fileMap = new HashMap<>();
-
-			URLClassLoader cp = (URLClassLoader)loader;
+		return scanClassLoader((URLClassLoader) loader, triggerNotification);
+	}
 
-			ArrayList<ClasspathResource> myResources = new ArrayList<>();
+	/**
+	 * Scans these jars and directories directly, without a classloader. Nothing is kept once the scan is finished - every
+	 * registered listener is asked about every resource each time - so release the resources when you are done with them.
+	 *
+	 * @param paths - the jars and directories in classpath order, any that don't exist are ignored
+	 * @return the resources that were scanned
+	 */
+	public List<ClasspathResource> scan(Collection<Path> paths) {
+		Map<String, ClasspathResource> fileMap = new HashMap<>();
+		List<ClasspathResource> myResources = new ArrayList<>();
 
-			for(URL url : cp.getURLs()) {
-				String path = url.toString();
+		for(Path path : paths) {
+			File file = path.toAbsolutePath().normalize().toFile();
 
-				if (path.startsWith(JAR_PREFIX)) {
-					processJarResource(path, url, fileMap, myResources);
-				} else if (path.startsWith(FILE_PREFIX)) {
-					processFileResource(path, url, fileMap, myResources);
+			if (!fileMap.containsKey(file.getPath())) {
+				try {
+					foundJar(file.getPath(), file.toURI().toURL(), fileMap, null, myResources);
+				} catch (MalformedURLException e) {
+					log.error("classpath scan: {} cannot be turned into a URL", file.getPath());
 				}
 			}
+		}
+
+		awaitPrescan();
 
-			cpResources = new Classpath(myResources);
+		new Classpath(myResources).triggerNotifications();
 
-			resources.put(cp, cpResources);
+		return myResources;
+	}
+
+	/**
+	 * Scans a classpath in the form of java.class.path, without a classloader. See scan(Collection&lt;Path&gt;).
+	 */
+	public List<ClasspathResource> scan(String classpath) {
+		List<Path> paths = new ArrayList<>();
+
+		for(String path : classpath.split(File.pathSeparator)) {
+			if (path.length() > 0) {
+				paths.add(Paths.get(path));
+			}
 		}
 
+		return scan(paths);
+	}
+
+	private List<ClasspathResource> scanClassLoader(URLClassLoader loader, boolean triggerNotification) {
+		Classpath cpResources = classpathOf(loader);
+
 		if (triggerNotification) {
 			cpResources.triggerNotifications();
 		}
@@ -149,6 +978,301 @@ public class ClasspathScanner {
 		return cpResources.classpaths;
 	}
 
+	private Classpath classpathOf(URLClassLoader loader) {
+		Classpath cpResources = resources.get(loader);
+
+		if (cpResources != null) {
+			return cpResources;
+		}
+
+		// only working out what is on a classpath is done one at a time, it is quick - the scans themselves aren't
+		synchronized (ClasspathScanner.class) {
+			cpResources = resources.get(loader);
+
+			if (cpResources == null) {
+				Map<String, ClasspathResource> fileMap = new HashMap<>();
+
+				ArrayList<ClasspathResource> myResources = new ArrayList<>();
+
+				for(URL url : classpathUrls(loader)) {
+					String path = url.toString();
+
+					if (path.startsWith(JAR_PREFIX)) {
+						processJarResource(path, url, fileMap, myResources);
+					} else if (path.startsWith(FILE_PREFIX)) {
+						processFileResource(path, url, fileMap, myResources);
+					}
+				}
+
+				cpResources = new Classpath(myResources);
+
+				resources.put(loader, cpResources);
+			}
+		}
+
+		return cpResources;
+	}
+
+	public List<String> getIndexedDescriptors() {
+		return indexedDescriptors;
+	}
+
+	/**
+	 * Sets which META-INF descriptors the index gathers (see DescriptorIndex.DEFAULT_DESCRIPTORS). An
+	 * empty list turns the index off.
+	 */
+	public void setIndexedDescriptors(Collection<String> indexedDescriptors) {
+		this.indexedDescriptors = Collections.unmodifiableList(new ArrayList<>(indexedDescriptors));
+	}
+
+	public int getMultiReleaseVersion() {
+		return multiReleaseVersion;
+	}
+
+	/**
+	 * Multi-release jars (Multi-Release: true in the manifest) are delivered with just the entries a JarFile would use for
+	 * this Java version - each resource once, its content coming from the highest META-INF/versions/N/ copy not above the
+	 * version, or the base entry if there is none. Like a JarFile, copies under versions below 9 are never used.
+	 *
+	 * It starts at 0, so listeners see the versioned entries as they are in the jar and no manifests are read - set it to
+	 * RUNTIME_JAVA_VERSION to see what the running Java would. Even then a manifest is only read if the jar has anything
+	 * under META-INF/versions/.
+	 */
+	public void setMultiReleaseVersion(int multiReleaseVersion) {
+		this.multiReleaseVersion = multiReleaseVersion;
+	}
+
+	/**
+	 * The descriptors on this classloader's classpath. They are read from the entries of the last scan when first asked
+	 * for, and the index is kept until the next scan, so asking again is only a map lookup.
+	 *
+	 * @param loader - the URL classloader
+	 */
+	public DescriptorIndex descriptors(ClassLoader loader) {
+		scan(loader, false);
+
+		return resources.get(loader).descriptorIndex();
+	}
+
+	/**
+	 * Keeps up to maxOpen jars open between scans and deliveries, so REPEAT scans and listeners reading resources later
+	 * (see openResource) don't reopen each jar and parse its directory again. Jars not used for idleMillis are closed, and
+	 * a classloader's jars are closed when it is released. Jars stay locked while they are open, which matters on Windows.
+	 *
+	 * @param maxOpen - the most jars to keep open, 0 to open them each time they are needed (the default)
+	 * @param idleMillis - close a jar once it hasn't been used for this long, 0 to only close them when we have too many
+	 */
+	public synchronized void setJarHandleCache(int maxOpen, long idleMillis) {
+		if (jarHandles != null) {
+			jarHandles.closeAll();
+			jarHandles = null;
+		}
+
+		if (jarHousekeeping != null) {
+			jarHousekeeping.cancel(false);
+			jarHousekeeping = null;
+		}
+
+		if (maxOpen > 0) {
+			final JarHandleCache handles = new JarHandleCache(maxOpen, idleMillis);
+
+			if (idleMillis > 0) {
+				jarHousekeeping = housekeeper().scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						handles.closeIdle();
+					}
+				}, idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+			}
+
+			jarHandles = handles;
+		}
+	}
+
+	/**
+	 * @return the open jars, or null if we aren't keeping them
+	 */
+	synchronized JarHandleCache jarHandles() {
+		return jarHandles;
+	}
+
+	private synchronized void closeIdleJars() {
+		if (jarHandles != null) {
+			jarHandles.closeIdle();
+		}
+	}
+
+	private static synchronized ScheduledExecutorService housekeeper() {
+		if (housekeeper == null) {
+			housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new ScannerThread(r, "classpath-scanner-housekeeping");
+				}
+			});
+		}
+
+		return housekeeper;
+	}
+
+	/**
+	 * Opens a resource a listener was offered, e.g. one it decided it wanted after all. This uses the jars we are keeping
+	 * open (see setJarHandleCache) rather than going through the resource's URL, which would open the jar again.
+	 *
+	 * @param loader - the URL classloader it was found on
+	 * @return the content, or null if it is no longer there
+	 */
+	public InputStream openResource(ClassLoader loader, ResourceScanListener.ScanResource resource) throws IOException {
+		for(ClasspathResource classpathResource : scan(loader, false)) {
+			if (classpathResource.getUrl().equals(resource.url)) {
+				return classpathResource.open(resource);
+			}
+		}
+
+		return resource.getResolvedUrl().openStream();
+	}
+
+	public boolean isDetectShadowing() {
+		return detectShadowing;
+	}
+
+	/**
+	 * At the end of each scan, go through the entries we found looking for resources that are on the classpath more than
+	 * once, and log a warning for each one where the copies differ (and the packages that are split across jars).
+	 */
+	public void setDetectShadowing(boolean detectShadowing) {
+		this.detectShadowing = detectShadowing;
+	}
+
+	/**
+	 * The resources on this classloader's classpath more than once, in classpath order. This is worked out from the
+	 * entries found by the last scan (any resources not scanned yet are read now) and kept until the next scan.
+	 *
+	 * @param loader - the URL classloader
+	 */
+	public ShadowedResources shadowedResources(ClassLoader loader) {
+		scan(loader, false);
+
+		return resources.get(loader).shadowedResources();
+	}
+
+	private static void reportShadowedResources(ShadowedResources shadowed) {
+		for(ShadowedResources.Shadow conflict : shadowed.getConflicts()) {
+			log.warn("classpath scan: {} is on the classpath more than once and the copies differ: {}", conflict.name, conflict.copies);
+		}
+
+		for(Map.Entry<String, List<URL>> split : shadowed.getSplitPackages().entrySet()) {
+			log.warn("classpath scan: package {} is split across {}", split.getKey(), split.getValue());
+		}
+	}
+
+	/**
+	 * Searches the content of the resources on this classloader's classpath for all of the patterns at once, telling the
+	 * listener about every place one is found. Resources are searched in parallel if the scanner has been given more than
+	 * one thread (see setParallelism). No resource listeners are told anything.
+	 *
+	 * @param loader - the URL classloader to search
+	 * @param patterns - what to look for, each is searched for as UTF-8
+	 * @param filter - which entries to search, null for all of them
+	 * @param listener - told about each match, possibly from several threads at once
+	 */
+	public void search(ClassLoader loader, Collection<String> patterns, ContentMatchListener.EntryFilter filter, ContentMatchListener listener) {
+		ContentSearch search = new ContentSearch(patterns, filter, listener, inflaterPool());
+		ExecutorService workers = parallelExecutor();
+		List<Future<Void>> running = new ArrayList<>();
+
+		try {
+			for (ClasspathResource resource : scan(loader, false)) {
+				running.addAll(resource.search(search, workers));
+			}
+
+			for (Future<Void> batch : running) {
+				batch.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new RuntimeException("Interrupted while searching the classpath", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Unable to search the classpath", e.getCause());
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to search the classpath", e);
+		} finally {
+			for (Future<Void> batch : running) {
+				batch.cancel(false);
+			}
+
+			releaseInflaters();
+		}
+	}
+
+	/**
+	 * @return everywhere the pattern was found in the entries the filter accepts (null for all entries)
+	 */
+	public List<ContentMatchListener.ContentMatch> search(ClassLoader loader, String pattern, ContentMatchListener.EntryFilter filter) {
+		final List<ContentMatchListener.ContentMatch> found = Collections.synchronizedList(new ArrayList<ContentMatchListener.ContentMatch>());
+
+		search(loader, Collections.singletonList(pattern), filter, new ContentMatchListener() {
+			@Override
+			public void matched(ContentMatch match) {
+				found.add(match);
+			}
+		});
+
+		return new ArrayList<>(found);
+	}
+
+	/**
+	 * Captures the identity and entries of everything on this classloader's classpath, without telling any listeners.
+	 *
+	 * @param loader - the URL classloader to snapshot
+	 * @return the snapshot, which should be released when no longer needed
+	 */
+	public ClasspathSnapshot snapshot(ClassLoader loader) {
+		List<ClasspathSnapshot.ResourceState> states = new ArrayList<>();
+
+		for(ClasspathResource resource : scan(loader, false)) {
+			states.add(resource.snapshot());
+		}
+
+		return new ClasspathSnapshot(states);
+	}
+
+	/**
+	 * Works out what was added, changed and removed between two snapshots. Jars whose identity has not changed are
+	 * not compared entry by entry.
+	 */
+	public static ClasspathDiff diff(ClasspathSnapshot previous, ClasspathSnapshot current) {
+		return ClasspathDiff.between(previous, current);
+	}
+
+	private List<URL> classpathUrls(URLClassLoader loader) {
+		List<URL> urls = new ArrayList<>();
+
+		if (includeParentClassLoaders) {
+			LinkedList<URLClassLoader> loaders = new LinkedList<>();
+
+			for(ClassLoader parent = loader; parent != null; parent = parent.getParent()) {
+				if (parent instanceof URLClassLoader) {
+					loaders.addFirst((URLClassLoader)parent);
+				}
+			}
+
+			Set<String> seen = new HashSet<>();
+			for(URLClassLoader parent : loaders) {
+				for(URL url : parent.getURLs()) {
+					if (seen.add(url.toString())) {
+						urls.add(url);
+					}
+				}
+			}
+		} else {
+			urls.addAll(Arrays.asList(loader.getURLs()));
+		}
+
+		return urls;
+	}
+
 	private void processFileResource(String path, URL url, Map<String, ClasspathResource> fileMap, List<ClasspathResource> myResources) {
 		path = path.substring(FILE_PREFIX.length());
 
@@ -190,6 +1314,7 @@ public class ClasspathScanner {
 
 		if (jarFile.exists()) {
 			resource = new ClasspathResource(jarFile, url);
+			resource.setScanner(this);
 
 			if (offset != null) {
 				resource.addJarOffset(offset, url);
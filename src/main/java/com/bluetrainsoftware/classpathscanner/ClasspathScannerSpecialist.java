@@ -8,4 +8,13 @@ import java.util.List;
  */
 public interface ClasspathScannerSpecialist {
 	public boolean handlesClasspathResource(ClasspathResource resource, List<ResourceScanListener.ScanResource> scanResources) throws IOException;
+
+	/**
+	 * A specialist that says up front what the resources it handles look like, so it is only asked about those that
+	 * match one of its selectors. The header and manifest the selectors look at are read once for all specialists and
+	 * are there in ClasspathResource.getProbe() when the specialist is asked.
+	 */
+	interface Selective extends ClasspathScannerSpecialist {
+		List<ResourceSelector> selectors();
+	}
 }
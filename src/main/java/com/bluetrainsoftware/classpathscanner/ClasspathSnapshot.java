@@ -0,0 +1,72 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the classpath looked like at a point in time - the identity and entries of each resource. Two of these can be
+ * compared with ClasspathScanner.diff to find out what has been added, changed or removed.
+ *
+ * A snapshot holds onto the entry tables, so release it when it is no longer needed.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class ClasspathSnapshot {
+	public static class ResourceState {
+		/**
+		 * The URL of the directory or jar file
+		 */
+		public final URL url;
+		/**
+		 * The directory or jar file
+		 */
+		public final File source;
+		/**
+		 * The identity of the jar when the snapshot was taken, null for directories.
+		 */
+		public final ResourceIdentity identity;
+		/**
+		 * All of the entries
+		 */
+		public final EntryTable entries;
+
+		public ResourceState(URL url, File source, ResourceIdentity identity, EntryTable entries) {
+			this.url = url;
+			this.source = source;
+			this.identity = identity;
+			this.entries = entries;
+		}
+	}
+
+	private final List<ResourceState> resources;
+
+	public ClasspathSnapshot(List<ResourceState> resources) {
+		this.resources = Collections.unmodifiableList(new ArrayList<>(resources));
+	}
+
+	public List<ResourceState> getResources() {
+		return resources;
+	}
+
+	/**
+	 * @return the state of this jar or directory, or null if it wasn't on the classpath
+	 */
+	public ResourceState find(File source) {
+		for (ResourceState state : resources) {
+			if (state.source.equals(source)) {
+				return state;
+			}
+		}
+
+		return null;
+	}
+
+	public void release() {
+		for (ResourceState state : resources) {
+			state.entries.release();
+		}
+	}
+}
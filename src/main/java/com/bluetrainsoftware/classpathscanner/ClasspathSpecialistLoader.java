@@ -3,17 +3,62 @@ package com.bluetrainsoftware.classpathscanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Finds the specialists, and remembers which one (if any) handled each jar so a rescan goes straight to it without
+ * asking the others again. Jars are recognised as SharedEntryTables does, so a changed jar is routed afresh, and the
+ * routes are forgotten whenever the specialists change. That no specialist wanted a jar is only remembered for the
+ * listeners it was asked for, as a specialist's answer may depend on who is listening.
+ *
  * @author: Richard Vowles - https://plus.google.com/+RichardVowles
  */
 public class ClasspathSpecialistLoader {
 	private static final Logger log = LoggerFactory.getLogger(ClasspathSpecialistLoader.class);
 	public static List<ClasspathScannerSpecialist> specialists = new ArrayList<>();
 
+	/**
+	 * Marks a jar no specialist wanted.
+	 */
+	private static final ClasspathScannerSpecialist DEFAULT_HANDLING = new ClasspathScannerSpecialist() {
+		@Override
+		public boolean handlesClasspathResource(ClasspathResource resource, List<ResourceScanListener.ScanResource> scanResources) {
+			return false;
+		}
+	};
+
+	private static class Route {
+		final ClasspathScannerSpecialist specialist;
+		/**
+		 * Who was listening when no specialist wanted the jar, held weakly so the route doesn't keep them.
+		 */
+		final Set<ResourceScanListener> listeners;
+
+		Route(ClasspathScannerSpecialist specialist, Set<ResourceScanListener> listeners) {
+			this.specialist = specialist;
+			this.listeners = listeners;
+		}
+
+		boolean declinedFor(Set<ResourceScanListener> current) {
+			synchronized (listeners) {
+				return specialist == DEFAULT_HANDLING && listeners.size() == current.size() && listeners.containsAll(current);
+			}
+		}
+	}
+
+	private static final ConcurrentHashMap<SharedEntryTables.Key, Route> routes = new ConcurrentHashMap<>();
+	private static List<ClasspathScannerSpecialist> routedFor = new ArrayList<>();
+
 	static {
 		ServiceLoader<ClasspathScannerSpecialist> services = ServiceLoader.load(ClasspathScannerSpecialist.class, Thread.currentThread().getContextClassLoader());
 
@@ -23,4 +68,117 @@ public class ClasspathSpecialistLoader {
 			specialists.add(service);
 		}
 	}
+
+	/**
+	 * Hands the resource to the specialist that handled it last time, or failing that the first that wants it -
+	 * specialists with selectors are only asked if one matches.
+	 *
+	 * @return true if a specialist handled it
+	 */
+	static boolean route(ClasspathResource resource, List<ResourceScanListener.ScanResource> scanResources) {
+		if (specialists.isEmpty()) {
+			return false;
+		}
+
+		List<ClasspathScannerSpecialist> current = currentSpecialists();
+		SharedEntryTables.Key key = resource.routeKey();
+		Route routed = key == null ? null : routes.get(key);
+		Set<ResourceScanListener> listeners = new LinkedHashSet<>();
+
+		resource.collectInUseListeners(listeners);
+
+		if (routed != null && routed.declinedFor(listeners)) {
+			return false;
+		}
+
+		try {
+			if (routed != null && routed.specialist != DEFAULT_HANDLING) {
+				if (asks(routed.specialist, resource, scanResources)) {
+					return true;
+				}
+
+				routes.remove(key); // it has changed its mind, so everyone (it too, in its turn) gets asked
+			}
+
+			ClasspathScannerSpecialist handler = DEFAULT_HANDLING;
+
+			for (ClasspathScannerSpecialist specialist : current) {
+				if (selects(specialist, resource) && asks(specialist, resource, scanResources)) {
+					handler = specialist;
+					break;
+				}
+			}
+
+			if (key != null) {
+				// routes are read by classloaders scanning at the same time, and a weak set tidies itself as it is read
+				Set<ResourceScanListener> askedFor = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ResourceScanListener, Boolean>()));
+				askedFor.addAll(listeners);
+
+				routes.put(key, new Route(handler, askedFor));
+			}
+
+			return handler != DEFAULT_HANDLING;
+		} finally {
+			resource.finishedProbing();
+		}
+	}
+
+	private static boolean asks(ClasspathScannerSpecialist specialist, ClasspathResource resource, List<ResourceScanListener.ScanResource> scanResources) {
+		try {
+			return specialist.handlesClasspathResource(resource, scanResources);
+		} catch (IOException e) {
+			log.error("Unable to process classpath resource {}", resource.getClassesSource().getAbsolutePath(), e);
+
+			return false;
+		}
+	}
+
+	private static boolean selects(ClasspathScannerSpecialist specialist, ClasspathResource resource) {
+		if (!(specialist instanceof ClasspathScannerSpecialist.Selective)) {
+			return true;
+		}
+
+		for (ResourceSelector selector : ((ClasspathScannerSpecialist.Selective) specialist).selectors()) {
+			if (selector.matches(resource, resource.getProbe())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the specialists, forgetting the routes if they have changed since we last routed
+	 */
+	private static synchronized List<ClasspathScannerSpecialist> currentSpecialists() {
+		if (!routedFor.equals(specialists)) {
+			routes.clear();
+			routedFor = new ArrayList<>(specialists);
+		}
+
+		return routedFor;
+	}
+
+	/**
+	 * Forgets where this jar went, e.g. its classloader has been released.
+	 */
+	static void forget(File file) {
+		String path;
+
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			path = file.getAbsolutePath();
+		}
+
+		for (Iterator<SharedEntryTables.Key> it = routes.keySet().iterator(); it.hasNext(); ) {
+			if (it.next().path.equals(path)) {
+				it.remove();
+			}
+		}
+	}
+
+	static int routes() {
+		return routes.size();
+	}
 }
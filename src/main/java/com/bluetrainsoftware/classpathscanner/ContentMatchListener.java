@@ -0,0 +1,48 @@
+package com.bluetrainsoftware.classpathscanner;
+
+/**
+ * Told about each place one of the patterns of a ClasspathScanner.search was found. Resources are searched in parallel
+ * when the scanner has more than one thread, so this may be called by several threads at once.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public interface ContentMatchListener {
+	void matched(ContentMatch match);
+
+	/**
+	 * Decides which entries are worth searching, so we don't read the ones that aren't.
+	 */
+	interface EntryFilter {
+		/**
+		 * @param entryName - the / separated name of the entry relative to any jar offset (as ScanResource.resourceName
+		 *                  is), e.g. META-INF/spring.factories even if it is in the WEB-INF/classes of a war
+		 */
+		boolean accept(String entryName);
+	}
+
+	class ContentMatch {
+		/**
+		 * Where the pattern was found
+		 */
+		public final ResourceScanListener.ScanResource resource;
+		/**
+		 * The pattern that was found
+		 */
+		public final String pattern;
+		/**
+		 * The offset of the start of the pattern in the (uncompressed) content of the resource
+		 */
+		public final long offset;
+
+		public ContentMatch(ResourceScanListener.ScanResource resource, String pattern, long offset) {
+			this.resource = resource;
+			this.pattern = pattern;
+			this.offset = offset;
+		}
+
+		@Override
+		public String toString() {
+			return resource.url + "!" + resource.resourceName + "@" + offset + ": " + pattern;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One search of the classpath's content - the patterns to look for, which entries to look in and who to tell. Each
+ * resource's content is streamed through the pattern automaton a (pooled) buffer at a time, so nothing is held in memory
+ * and it can be searching many resources at once.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class ContentSearch {
+	private final List<String> patterns;
+	private final AhoCorasick automaton;
+	private final ContentMatchListener.EntryFilter filter;
+	private final ContentMatchListener listener;
+	private final InflaterPool pool;
+
+	/**
+	 * @param patterns - what to look for, each is searched for as UTF-8
+	 * @param filter - which entries to search, null for all of them
+	 * @param listener - told about each match
+	 * @param pool - where to borrow buffers from, null to allocate our own
+	 */
+	ContentSearch(Collection<String> patterns, ContentMatchListener.EntryFilter filter, ContentMatchListener listener, InflaterPool pool) {
+		this.patterns = new ArrayList<>(patterns);
+		this.filter = filter;
+		this.listener = listener;
+		this.pool = pool;
+
+		List<byte[]> bytes = new ArrayList<>();
+
+		for (String pattern : this.patterns) {
+			bytes.add(pattern.getBytes(EntryTable.UTF8));
+		}
+
+		this.automaton = new AhoCorasick(bytes);
+	}
+
+	boolean wants(String entryName) {
+		return filter == null || filter.accept(entryName);
+	}
+
+	/**
+	 * Looks through the whole of the content, telling the listener about each match as it is found. The stream is closed.
+	 */
+	void search(ResourceScanListener.ScanResource resource, InputStream stream) throws IOException {
+		byte[] buffer = pool == null ? new byte[InflaterPool.BUFFER_SIZE] : pool.borrowBuffer();
+
+		try {
+			int state = 0;
+			long position = 0;
+			int read;
+
+			while ((read = stream.read(buffer)) != -1) {
+				for (int i = 0; i < read; i++) {
+					state = automaton.step(state, buffer[i]);
+
+					for (int found : automaton.matches(state)) {
+						long offset = position + i - automaton.pattern(found).length + 1;
+
+						listener.matched(new ContentMatchListener.ContentMatch(resource, patterns.get(found), offset));
+					}
+				}
+
+				position += read;
+			}
+		} finally {
+			stream.close();
+
+			if (pool != null) {
+				pool.returnBuffer(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The META-INF descriptors (service files, spring.factories, web fragments and so on) of a whole classpath, gathered
+ * from the entry tables the first time they are asked for so that finding them later is a map lookup rather than another
+ * scan. Descriptors are
+ * in classpath order, as a ServiceLoader would find them.
+ *
+ * Names are relative to the jar offset, e.g. META-INF/services/javax.servlet.ServletContainerInitializer, even if the
+ * descriptor is in the WEB-INF/classes of a war.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class DescriptorIndex {
+	/**
+	 * What we collect unless told otherwise - names ending in / collect everything under them.
+	 */
+	public static final List<String> DEFAULT_DESCRIPTORS = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(
+		"META-INF/services/", "META-INF/spring.factories", "META-INF/spring.handlers", "META-INF/spring.schemas",
+		"META-INF/web-fragment.xml")));
+
+	public static class Descriptor {
+		/**
+		 * The URL of the directory or jar file
+		 */
+		public final URL url;
+		/**
+		 * The full name of the entry in the jar or directory, including any jar offset
+		 */
+		public final String entryName;
+		/**
+		 * The name of the descriptor, e.g. META-INF/spring.factories
+		 */
+		public final String name;
+		/**
+		 * The whole descriptor as UTF-8
+		 */
+		public final String content;
+		/**
+		 * The class names in a service file, or key=value for each property in a .factories, .handlers, .schemas or
+		 * .properties file, otherwise empty.
+		 */
+		public final List<String> entries;
+
+		public Descriptor(URL url, String entryName, String name, byte[] content) {
+			this.url = url;
+			this.entryName = entryName;
+			this.name = name;
+			this.content = new String(content, EntryTable.UTF8);
+			this.entries = Collections.unmodifiableList(parse(name, content));
+		}
+
+		private static List<String> parse(String name, byte[] content) {
+			List<String> entries = new ArrayList<>();
+
+			if (name.startsWith("META-INF/services/")) {
+				for (String line : new String(content, EntryTable.UTF8).split("\n")) {
+					int comment = line.indexOf('#');
+					String service = (comment == -1 ? line : line.substring(0, comment)).trim();
+
+					if (service.length() > 0) {
+						entries.add(service);
+					}
+				}
+			} else if (name.endsWith(".factories") || name.endsWith(".handlers") || name.endsWith(".schemas") || name.endsWith(".properties")) {
+				Properties properties = new Properties();
+
+				try {
+					properties.load(new ByteArrayInputStream(content));
+				} catch (IOException | IllegalArgumentException e) {
+					return entries; // not really properties after all
+				}
+
+				for (String key : properties.stringPropertyNames()) {
+					entries.add(key + "=" + properties.getProperty(key));
+				}
+
+				Collections.sort(entries);
+			}
+
+			return entries;
+		}
+
+		@Override
+		public String toString() {
+			return url + "!/" + entryName;
+		}
+	}
+
+	private final Map<String, List<Descriptor>> descriptors = new LinkedHashMap<>();
+
+	DescriptorIndex(Collection<List<Descriptor>> resources) {
+		for (List<Descriptor> resource : resources) {
+			for (Descriptor descriptor : resource) {
+				List<Descriptor> named = descriptors.get(descriptor.name);
+
+				if (named == null) {
+					named = new ArrayList<>();
+					descriptors.put(descriptor.name, named);
+				}
+
+				named.add(descriptor);
+			}
+		}
+	}
+
+	/**
+	 * @return every copy of this descriptor on the classpath, in classpath order
+	 */
+	public List<Descriptor> find(String name) {
+		List<Descriptor> named = descriptors.get(name.startsWith("/") ? name.substring(1) : name);
+
+		return named == null ? Collections.<Descriptor>emptyList() : Collections.unmodifiableList(named);
+	}
+
+	/**
+	 * @return the implementations of this service from all META-INF/services files, as a ServiceLoader would find them
+	 */
+	public List<String> services(String serviceName) {
+		List<String> services = new ArrayList<>();
+
+		for (Descriptor descriptor : find("META-INF/services/" + serviceName)) {
+			for (String service : descriptor.entries) {
+				if (!services.contains(service)) {
+					services.add(service);
+				}
+			}
+		}
+
+		return services;
+	}
+
+	public List<String> services(Class<?> service) {
+		return services(service.getName());
+	}
+
+	/**
+	 * @return the names of all of the descriptors we found
+	 */
+	public Collection<String> getNames() {
+		return Collections.unmodifiableSet(descriptors.keySet());
+	}
+
+	/**
+	 * @param name - the name of the entry, relative to its jar offset
+	 * @param descriptorNames - the descriptors wanted, those ending in / want everything beneath them
+	 */
+	static boolean isDescriptor(String name, Collection<String> descriptorNames) {
+		for (String descriptor : descriptorNames) {
+			if (descriptor.endsWith("/") ? name.startsWith(descriptor) && name.length() > descriptor.length() && !name.endsWith("/") : name.equals(descriptor)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,224 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Where the entry tables (and their indexes) keep their data. HEAP is the default, DIRECT and MAPPED keep the tables
+ * out of the Java heap so a very large classpath does not count towards the live set the GC has to deal with.
+ *
+ * Off-heap buffers are given back when the classloader's resources are released (see ClasspathScanner.release), so
+ * nothing may be holding onto an EntryTable after that.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public enum EntryStorage {
+	HEAP {
+		@Override
+		ByteBuffer allocate(int capacity) {
+			return ByteBuffer.allocate(capacity);
+		}
+
+		@Override
+		void release(ByteBuffer buffer) {
+		}
+	},
+
+	DIRECT {
+		@Override
+		ByteBuffer allocate(int capacity) {
+			return ByteBuffer.allocateDirect(capacity);
+		}
+	},
+
+	/**
+	 * Backed by temporary files which are deleted as soon as they are mapped, so the OS can page the tables out. Buffers
+	 * are cut from chunks of MappedChunks.CHUNK_SIZE rather than each having a file of their own.
+	 */
+	MAPPED {
+		@Override
+		ByteBuffer allocate(int capacity) {
+			return MappedChunks.allocate(capacity);
+		}
+
+		@Override
+		void release(ByteBuffer buffer) {
+			MappedChunks.release(buffer);
+		}
+	};
+
+	private static final Logger log = LoggerFactory.getLogger(EntryStorage.class);
+
+	abstract ByteBuffer allocate(int capacity);
+
+	/**
+	 * Frees the memory behind an off-heap buffer straight away rather than waiting for the GC to notice it.
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.isDirect()) {
+			Cleaner.clean(buffer);
+		}
+	}
+
+	/**
+	 * Cuts MAPPED buffers one after another from a mapped chunk, moving on to a new chunk when it is full. Space is never
+	 * reused within a chunk (so every buffer starts zeroed, as a heap buffer does), and a chunk is unmapped once every
+	 * buffer cut from it has been given back.
+	 */
+	static class MappedChunks {
+		static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+		private static class Chunk {
+			final ByteBuffer mapped;
+			int live;
+
+			Chunk(ByteBuffer mapped) {
+				this.mapped = mapped;
+			}
+		}
+
+		private static final Map<ByteBuffer, Chunk> owners = new IdentityHashMap<>();
+		private static Chunk current;
+		private static int chunks;
+
+		static synchronized ByteBuffer allocate(int capacity) {
+			if (current == null || current.mapped.remaining() < capacity) {
+				Chunk full = current;
+				current = map(Math.max(CHUNK_SIZE, capacity));
+
+				if (full != null && full.live == 0) {
+					unmap(full);
+				}
+
+				if (current == null) {
+					return ByteBuffer.allocateDirect(capacity);
+				}
+			}
+
+			int start = current.mapped.position();
+			ByteBuffer view = current.mapped.duplicate();
+			view.limit(start + capacity);
+			view.position(start);
+
+			// the next buffer starts on an 8 byte boundary, for the records and the lookup
+			current.mapped.position(Math.min(current.mapped.capacity(), (start + capacity + 7) & ~7));
+
+			ByteBuffer buffer = view.slice();
+			owners.put(buffer, current);
+			current.live++;
+
+			return buffer;
+		}
+
+		static synchronized void release(ByteBuffer buffer) {
+			Chunk chunk = owners.remove(buffer);
+
+			if (chunk == null) { // it couldn't be mapped
+				if (buffer != null && buffer.isDirect()) {
+					Cleaner.clean(buffer);
+				}
+			} else if (--chunk.live == 0) {
+				if (chunk == current) {
+					current = null;
+				}
+
+				unmap(chunk);
+			}
+		}
+
+		/**
+		 * @return how many chunks are mapped
+		 */
+		static synchronized int chunks() {
+			return chunks;
+		}
+
+		private static Chunk map(int size) {
+			try {
+				File backing = File.createTempFile("classpath-scanner", ".idx");
+
+				try (RandomAccessFile raf = new RandomAccessFile(backing, "rw")) {
+					raf.setLength(size);
+					chunks++;
+
+					return new Chunk(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+				} finally {
+					if (!backing.delete()) {
+						backing.deleteOnExit();
+					}
+				}
+			} catch (IOException e) {
+				log.error("Unable to map entry table storage, falling back to direct memory", e);
+
+				return null;
+			}
+		}
+
+		private static void unmap(Chunk chunk) {
+			chunks--;
+			Cleaner.clean(chunk.mapped);
+		}
+	}
+
+	/**
+	 * There is no public api to free a direct buffer, so use whichever private one the JVM offers. If none is
+	 * available the buffer is simply left for the GC.
+	 */
+	static class Cleaner {
+		private static Object unsafe;
+		private static Method invokeCleaner;
+		private static boolean unavailable;
+
+		static synchronized void clean(ByteBuffer buffer) {
+			if (unavailable) {
+				return;
+			}
+
+			try {
+				if (invokeCleaner == null && unsafe == null) {
+					locate();
+				}
+
+				if (invokeCleaner != null) { // java 9+
+					invokeCleaner.invoke(unsafe, buffer);
+				} else { // java 7/8
+					Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(buffer);
+
+					if (cleaner != null) {
+						cleaner.getClass().getMethod("clean").invoke(cleaner);
+					}
+				}
+			} catch (Exception e) {
+				log.debug("Unable to explicitly release off-heap entry storage, leaving it to the GC", e);
+
+				unavailable = true;
+			}
+		}
+
+		private static void locate() throws Exception {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+			} catch (NoSuchMethodException nsme) {
+				invokeCleaner = null;
+				unsafe = Boolean.FALSE; // don't look again
+			}
+		}
+	}
+}
@@ -0,0 +1,651 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds every entry found in a single classpath resource (jar or directory) in compact form. The names are stored
+ * as UTF-8 byte ranges in one buffer per resource, and each directory prefix (e.g. org/springframework/context/) is
+ * stored only once and shared by all of the entries beneath it. Strings are only created when someone asks for them.
+ *
+ * Entry names are stored exactly as they appear in the jar - directories end in a / and any jar offset
+ * (e.g. WEB-INF/classes/) is not stripped. A directory entry is stored purely as a prefix.
+ *
+ * The buffers come from an EntryStorage, so the table can live on or off the heap. A table is reference counted - it
+ * starts with one reference for whoever built it, anyone else keeping it (e.g. a snapshot) must retain it. Once the
+ * last reference is released the table is empty.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class EntryTable {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * prefix offset, prefix length, leaf offset, leaf length, size, crc, time
+	 */
+	static final int RECORD_SIZE = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+	private static final int INITIAL_ENTRIES = 64;
+
+	private final EntryStorage storage;
+	private ByteBuffer names;
+	private ByteBuffer records;
+	private int count;
+	private int references = 1;
+
+	/**
+	 * Only used while the table is being built, dropped once it is complete.
+	 */
+	private Map<String, int[]> prefixes = new HashMap<>();
+
+	/**
+	 * Open addressed hash of entry name -> record index + 1, built on first lookup.
+	 */
+	private volatile IntBuffer lookup;
+	private ByteBuffer lookupBuffer;
+
+	public EntryTable() {
+		this(EntryStorage.HEAP);
+	}
+
+	public EntryTable(EntryStorage storage) {
+		this.storage = storage;
+
+		names = storage.allocate(INITIAL_ENTRIES * 16);
+		records = storage.allocate(INITIAL_ENTRIES * RECORD_SIZE);
+	}
+
+	/**
+	 * A complete table over buffers that belong to someone else (e.g. mapped from a SharedScanIndex) and are never
+	 * given back.
+	 */
+	private EntryTable(ByteBuffer names, ByteBuffer records, int count, IntBuffer lookup) {
+		this.storage = EntryStorage.HEAP;
+		this.names = names;
+		this.records = records;
+		this.count = count;
+		this.lookup = lookup;
+		this.prefixes = null;
+	}
+
+	/**
+	 * @return how many bytes writeTo will write
+	 */
+	int writtenSize() {
+		if (lookup == null) {
+			buildLookup();
+		}
+
+		return 4 + 4 + 4 + nameBytesUsed() + count * RECORD_SIZE + lookup.capacity() * 4;
+	}
+
+	/**
+	 * Writes the names, records and name lookup of a complete table, so it can be read back with EntryTable.over.
+	 */
+	void writeTo(ByteBuffer out) {
+		if (lookup == null) {
+			buildLookup();
+		}
+
+		IntBuffer lookupView = lookup.duplicate();
+		lookupView.clear();
+
+		out.putInt(count);
+		out.putInt(nameBytesUsed());
+		out.putInt(lookupView.capacity());
+
+		ByteBuffer view = names.duplicate();
+		view.position(0);
+		view.limit(nameBytesUsed());
+		out.put(view);
+
+		view = records.duplicate();
+		view.position(0);
+		view.limit(count * RECORD_SIZE);
+		out.put(view);
+
+		out.asIntBuffer().put(lookupView);
+		out.position(out.position() + lookupView.capacity() * 4);
+	}
+
+	/**
+	 * A table over what writeTo wrote, without copying it.
+	 *
+	 * @throws IllegalArgumentException if the buffer doesn't hold a table
+	 */
+	static EntryTable over(ByteBuffer in) {
+		try {
+			int count = in.getInt();
+			int namesLength = in.getInt();
+			int lookupCapacity = in.getInt();
+
+			if (count < 0 || namesLength < 0 || lookupCapacity <= 0 || Integer.bitCount(lookupCapacity) != 1
+					|| in.remaining() != namesLength + (long) count * RECORD_SIZE + lookupCapacity * 4L) {
+				throw new IllegalArgumentException("Not an entry table");
+			}
+
+			ByteBuffer names = slice(in, namesLength);
+			names.position(namesLength);
+
+			ByteBuffer records = slice(in, count * RECORD_SIZE);
+			IntBuffer lookup = slice(in, lookupCapacity * 4).asIntBuffer();
+
+			return new EntryTable(names, records, count, lookup);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Not an entry table", e);
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer in, int length) {
+		ByteBuffer slice = in.slice();
+		slice.limit(length);
+		in.position(in.position() + length);
+
+		return slice;
+	}
+
+	/**
+	 * Adds an entry to the table.
+	 *
+	 * @param name - the full name as found in the jar or directory
+	 * @param size - the uncompressed size, -1 if unknown
+	 * @param crc - the CRC-32 of the content, -1 if unknown (e.g. files in a directory)
+	 * @param time - the last modified time, -1 if unknown
+	 * @return the index of the new entry
+	 */
+	public int add(String name, long size, long crc, long time) {
+		if (prefixes == null) {
+			throw new IllegalStateException("Entry table is complete and cannot be added to");
+		}
+
+		// directories become a prefix in their own right so their children share the same bytes
+		int slash = name.lastIndexOf('/');
+
+		int prefixOffset = 0;
+		int prefixLength = 0;
+
+		if (slash != -1) {
+			String prefix = name.substring(0, slash + 1);
+			int[] existing = prefixes.get(prefix);
+
+			if (existing == null) {
+				byte[] bytes = prefix.getBytes(UTF8);
+				existing = new int[] {appendName(bytes), bytes.length};
+				prefixes.put(prefix, existing);
+			}
+
+			prefixOffset = existing[0];
+			prefixLength = existing[1];
+		}
+
+		int leafOffset = 0;
+		int leafLength = 0;
+
+		if (slash != name.length() - 1) {
+			leafOffset = appendName(name.substring(slash + 1).getBytes(UTF8));
+			leafLength = names.position() - leafOffset;
+		}
+
+		ensureRecords();
+
+		records.putInt(prefixOffset);
+		records.putInt(prefixLength);
+		records.putInt(leafOffset);
+		records.putInt(leafLength);
+		records.putLong(size);
+		records.putLong(crc);
+		records.putLong(time);
+
+		releaseLookup();
+
+		return count++;
+	}
+
+	/**
+	 * Adds every entry of another table after ours, in its order. The bytes of the names are copied as they are, only
+	 * each directory prefix is made into a String (once) so it is still shared with the entries we already have.
+	 */
+	void addAll(EntryTable other) {
+		if (prefixes == null) {
+			throw new IllegalStateException("Entry table is complete and cannot be added to");
+		}
+
+		Map<Integer, int[]> ourPrefixes = new HashMap<>();
+
+		for (int index = 0; index < other.count; index++) {
+			int record = index * RECORD_SIZE;
+			int prefixOffset = other.records.getInt(record);
+			int prefixLength = other.records.getInt(record + 4);
+			int leafLength = other.records.getInt(record + 12);
+			int[] prefix = {0, 0};
+
+			if (prefixLength > 0) {
+				prefix = ourPrefixes.get(prefixOffset);
+
+				if (prefix == null) {
+					byte[] bytes = new byte[prefixLength];
+					other.copyName(prefixOffset, bytes, 0, prefixLength);
+
+					String name = new String(bytes, UTF8);
+					prefix = prefixes.get(name);
+
+					if (prefix == null) {
+						prefix = new int[] {appendName(bytes), prefixLength};
+						prefixes.put(name, prefix);
+					}
+
+					ourPrefixes.put(prefixOffset, prefix);
+				}
+			}
+
+			int leafOffset = 0;
+
+			if (leafLength > 0) {
+				byte[] bytes = new byte[leafLength];
+				other.copyName(other.records.getInt(record + 8), bytes, 0, leafLength);
+				leafOffset = appendName(bytes);
+			}
+
+			ensureRecords();
+
+			records.putInt(prefix[0]);
+			records.putInt(prefix[1]);
+			records.putInt(leafOffset);
+			records.putInt(leafLength);
+			records.putLong(other.records.getLong(record + 16));
+			records.putLong(other.records.getLong(record + 24));
+			records.putLong(other.records.getLong(record + 32));
+
+			count++;
+		}
+
+		releaseLookup();
+	}
+
+	/**
+	 * Indicates no more entries will be added, releasing the structures only needed during the build.
+	 *
+	 * @return this table
+	 */
+	public EntryTable complete() {
+		prefixes = null;
+
+		names = trim(names);
+		records = trim(records);
+
+		return this;
+	}
+
+	/**
+	 * Adds a reference to this table, it will not be released until release is called once more.
+	 *
+	 * @return this table
+	 */
+	public synchronized EntryTable retain() {
+		if (references == 0) {
+			throw new IllegalStateException("Entry table has already been released");
+		}
+
+		references++;
+
+		return this;
+	}
+
+	synchronized int references() {
+		return references;
+	}
+
+	/**
+	 * Drops a reference and gives the storage back when it was the last. Off-heap memory is freed immediately.
+	 */
+	public synchronized void release() {
+		if (references == 0 || --references > 0) {
+			return;
+		}
+
+		releaseLookup();
+
+		storage.release(names);
+		storage.release(records);
+
+		names = ByteBuffer.allocate(0);
+		records = ByteBuffer.allocate(0);
+		count = 0;
+	}
+
+	public EntryStorage getStorage() {
+		return storage;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Materialises the name of the entry. A new String is created on each call, callers that want to keep the
+	 * name around for a long time should use internedName.
+	 *
+	 * @param index - the entry
+	 * @return the full name of the entry
+	 */
+	public String name(int index) {
+		return new String(nameBytes(index), UTF8);
+	}
+
+	public String internedName(int index) {
+		return name(index).intern();
+	}
+
+	/**
+	 * @param index - the entry
+	 * @return the directory portion of the name (including the trailing /), or "" for entries at the root. A directory
+	 * entry is its own prefix.
+	 */
+	public String prefix(int index) {
+		int record = index * RECORD_SIZE;
+		int prefixLength = records.getInt(record + 4);
+
+		if (prefixLength == 0) {
+			return "";
+		}
+
+		byte[] bytes = new byte[prefixLength];
+		copyName(records.getInt(record), bytes, 0, prefixLength);
+
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Entries in the same directory share the same prefix offset, which allows walking the directories without creating
+	 * a String for every entry.
+	 */
+	int prefixOffset(int index) {
+		return records.getInt(index * RECORD_SIZE + 4) == 0 ? -1 : records.getInt(index * RECORD_SIZE);
+	}
+
+	public boolean isDirectory(int index) {
+		int record = index * RECORD_SIZE;
+
+		return records.getInt(record + 12) == 0 && records.getInt(record + 4) > 0;
+	}
+
+	public long size(int index) {
+		return records.getLong(index * RECORD_SIZE + 16);
+	}
+
+	public long crc(int index) {
+		return records.getLong(index * RECORD_SIZE + 24);
+	}
+
+	public long time(int index) {
+		return records.getLong(index * RECORD_SIZE + 32);
+	}
+
+	/**
+	 * Determines if an entry in this table has the same content as one in another table. Jar entries are compared
+	 * using their size and CRC, files in a directory (which have no CRC) using their size and modification time. Directories
+	 * have no content of their own.
+	 */
+	public boolean sameContent(int index, EntryTable other, int otherIndex) {
+		if (isDirectory(index) && other.isDirectory(otherIndex)) {
+			return true;
+		}
+
+		if (size(index) != other.size(otherIndex)) {
+			return false;
+		}
+
+		if (crc(index) != -1 || other.crc(otherIndex) != -1) {
+			return crc(index) == other.crc(otherIndex);
+		}
+
+		return time(index) == other.time(otherIndex);
+	}
+
+	/**
+	 * @return the number of bytes used to hold all of the names
+	 */
+	public int nameBytesUsed() {
+		return names.position();
+	}
+
+	/**
+	 * Finds the entry with this exact name.
+	 *
+	 * @param name - the full name as stored
+	 * @return the index or -1 if not found
+	 */
+	public int find(String name) {
+		if (count == 0) {
+			return -1;
+		}
+
+		if (lookup == null) {
+			buildLookup();
+		}
+
+		IntBuffer table = lookup;
+		byte[] wanted = name.getBytes(UTF8);
+		int mask = table.capacity() - 1;
+		int slot = hash(wanted) & mask;
+
+		while (table.get(slot) != 0) {
+			int index = table.get(slot) - 1;
+
+			if (nameEquals(index, wanted)) {
+				return index;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * A hash of the entry name that does not require the name to be materialised. It is the same as hash(name.getBytes(UTF8)).
+	 */
+	public int nameHash(int index) {
+		return nameHash(index, 0);
+	}
+
+	/**
+	 * The hash of the name without its first skip bytes (e.g. a jar offset), the same as hash() of those bytes.
+	 */
+	int nameHash(int index, int skip) {
+		int record = index * RECORD_SIZE;
+		int length = nameLength(index);
+		int h = 0;
+
+		for (int i = skip; i < length; i++) {
+			h = 31 * h + nameByte(record, i);
+		}
+
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return true if this name without its first skip bytes is the same as the other name without its first otherSkip bytes
+	 */
+	boolean sameName(int index, int skip, EntryTable other, int otherIndex, int otherSkip) {
+		int length = nameLength(index) - skip;
+
+		if (length != other.nameLength(otherIndex) - otherSkip) {
+			return false;
+		}
+
+		int record = index * RECORD_SIZE;
+		int otherRecord = otherIndex * RECORD_SIZE;
+
+		for (int i = 0; i < length; i++) {
+			if (nameByte(record, skip + i) != other.nameByte(otherRecord, otherSkip + i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the name starts with these bytes
+	 */
+	boolean startsWith(int index, byte[] prefix) {
+		if (nameLength(index) < prefix.length) {
+			return false;
+		}
+
+		int record = index * RECORD_SIZE;
+
+		for (int i = 0; i < prefix.length; i++) {
+			if (nameByte(record, i) != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the length of the name in bytes
+	 */
+	int nameLength(int index) {
+		int record = index * RECORD_SIZE;
+
+		return records.getInt(record + 4) + records.getInt(record + 12);
+	}
+
+	private byte nameByte(int record, int position) {
+		int prefixLength = records.getInt(record + 4);
+
+		return position < prefixLength ? names.get(records.getInt(record) + position) : names.get(records.getInt(record + 8) + position - prefixLength);
+	}
+
+	byte[] nameBytes(int index) {
+		int record = index * RECORD_SIZE;
+		int prefixLength = records.getInt(record + 4);
+		int leafLength = records.getInt(record + 12);
+
+		byte[] bytes = new byte[prefixLength + leafLength];
+
+		if (prefixLength > 0) {
+			copyName(records.getInt(record), bytes, 0, prefixLength);
+		}
+
+		copyName(records.getInt(record + 8), bytes, prefixLength, leafLength);
+
+		return bytes;
+	}
+
+	static int hash(byte[] bytes) {
+		int h = 0;
+
+		for (byte b : bytes) {
+			h = 31 * h + b;
+		}
+
+		return h ^ (h >>> 16);
+	}
+
+	private boolean nameEquals(int index, byte[] wanted) {
+		int record = index * RECORD_SIZE;
+		int prefixLength = records.getInt(record + 4);
+		int leafLength = records.getInt(record + 12);
+
+		if (prefixLength + leafLength != wanted.length) {
+			return false;
+		}
+
+		int prefixOffset = records.getInt(record);
+		for (int i = 0; i < prefixLength; i++) {
+			if (names.get(prefixOffset + i) != wanted[i]) {
+				return false;
+			}
+		}
+
+		int leafOffset = records.getInt(record + 8);
+		for (int i = 0; i < leafLength; i++) {
+			if (names.get(leafOffset + i) != wanted[prefixLength + i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private synchronized void buildLookup() {
+		if (lookup != null) {
+			return;
+		}
+
+		int capacity = Integer.highestOneBit(Math.max(count, 8) * 2) * 2;
+		ByteBuffer buffer = storage.allocate(capacity * 4);
+		IntBuffer table = buffer.asIntBuffer();
+		int mask = capacity - 1;
+
+		for (int index = 0; index < count; index++) {
+			int slot = nameHash(index) & mask;
+
+			while (table.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+
+			table.put(slot, index + 1);
+		}
+
+		lookupBuffer = buffer;
+		lookup = table;
+	}
+
+	private void releaseLookup() {
+		if (lookupBuffer != null) {
+			lookup = null;
+			storage.release(lookupBuffer);
+			lookupBuffer = null;
+		}
+	}
+
+	private void copyName(int offset, byte[] dest, int destOffset, int length) {
+		ByteBuffer view = names.duplicate();
+		view.position(offset);
+		view.get(dest, destOffset, length);
+	}
+
+	private int appendName(byte[] bytes) {
+		if (names.remaining() < bytes.length) {
+			names = grow(names, bytes.length);
+		}
+
+		int offset = names.position();
+		names.put(bytes);
+
+		return offset;
+	}
+
+	private void ensureRecords() {
+		if (records.remaining() < RECORD_SIZE) {
+			records = grow(records, RECORD_SIZE);
+		}
+	}
+
+	private ByteBuffer grow(ByteBuffer buffer, int needed) {
+		return copy(buffer, Math.max(buffer.capacity() * 2, buffer.position() + needed));
+	}
+
+	private ByteBuffer trim(ByteBuffer buffer) {
+		return buffer.position() == buffer.capacity() ? buffer : copy(buffer, buffer.position());
+	}
+
+	private ByteBuffer copy(ByteBuffer buffer, int capacity) {
+		ByteBuffer copy = storage.allocate(capacity);
+
+		buffer.flip();
+		copy.put(buffer);
+
+		storage.release(buffer);
+
+		return copy;
+	}
+}
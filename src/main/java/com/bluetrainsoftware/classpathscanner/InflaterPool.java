@@ -0,0 +1,92 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the Inflaters (and their input buffers) used to deliver jar entries, so delivering thousands of classes does not
+ * create thousands of native inflaters for the cleaner to deal with. Anything borrowed is reset and handed back when
+ * the entry's stream is closed, and everything pooled is ended when the scan is finished.
+ *
+ * The pool is safe for use by many threads (read ahead, parallel scans) at once.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class InflaterPool {
+	static final int BUFFER_SIZE = 16 * 1024;
+
+	private final int maxPooled;
+	private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledInflaters = new AtomicInteger();
+	private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	InflaterPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	Inflater borrowInflater() {
+		Inflater inflater = inflaters.poll();
+
+		if (inflater == null) {
+			return new Inflater(true); // zip entries have no zlib header
+		}
+
+		pooledInflaters.decrementAndGet();
+
+		return inflater;
+	}
+
+	void returnInflater(Inflater inflater) {
+		if (pooledInflaters.incrementAndGet() > maxPooled) {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+		} else {
+			inflater.reset();
+			inflaters.add(inflater);
+		}
+	}
+
+	byte[] borrowBuffer() {
+		byte[] buffer = buffers.poll();
+
+		if (buffer == null) {
+			return new byte[BUFFER_SIZE];
+		}
+
+		pooledBuffers.decrementAndGet();
+
+		return buffer;
+	}
+
+	void returnBuffer(byte[] buffer) {
+		if (pooledBuffers.incrementAndGet() > maxPooled) {
+			pooledBuffers.decrementAndGet();
+		} else {
+			buffers.add(buffer);
+		}
+	}
+
+	/**
+	 * Frees the native memory of every pooled inflater, called at the end of a scan. Anything still borrowed will
+	 * be pooled again when it comes back.
+	 */
+	void release() {
+		Inflater inflater;
+
+		while ((inflater = inflaters.poll()) != null) {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+		}
+
+		while (buffers.poll() != null) {
+			pooledBuffers.decrementAndGet();
+		}
+	}
+
+	int pooled() {
+		return pooledInflaters.get();
+	}
+}
@@ -0,0 +1,398 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the content of jar entries straight from the file, inflating with Inflaters borrowed from an InflaterPool
+ * rather than having the JarFile create a new one for every stream. The content is not checked against any
+ * jar signature.
+ *
+ * The central directory is only read when the first entry is asked for. Entries are found by their position in it
+ * (the order a JarFile enumerates them in, so the position in our entry table) and checked against the name, so its
+ * names are only made into Strings if an entry turns out not to be where we expected it. Entries this can't handle
+ * (zip64, encrypted, unusual compression) return null so the caller can fall back to the JarFile.
+ *
+ * One reader is shared by every thread delivering from the jar, so reads are a seek and read on the file under the
+ * reader's lock rather than a FileChannel - interrupting a thread in the middle of a channel read (e.g. a listener
+ * that has run out of time) would close the channel for everyone else.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class JarEntryReader {
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private final File jar;
+	private final InflaterPool pool;
+	private RandomAccessFile raf;
+	private byte[] directory;
+	/**
+	 * Where each entry's record starts in the directory, in the order they are in the jar.
+	 */
+	private int[] records;
+	private int recordCount;
+	private Map<String, Integer> recordsByName;
+	/**
+	 * Set if any entry needs zip64 extra fields for its sizes or position, which we leave to the JarFile.
+	 */
+	private boolean zip64;
+
+	JarEntryReader(File jar, InflaterPool pool) {
+		this.jar = jar;
+		this.pool = pool;
+	}
+
+	/**
+	 * @param name - the full entry name
+	 * @return the content of the entry, or null if we can't read it ourselves
+	 */
+	InputStream open(String name) throws IOException {
+		return open(-1, name);
+	}
+
+	/**
+	 * @param index - the position of the entry in the jar, -1 if we don't know
+	 * @param name - the full entry name
+	 * @return the content of the entry, or null if we can't read it ourselves
+	 */
+	InputStream open(int index, String name) throws IOException {
+		if (!readDirectory()) {
+			return null;
+		}
+
+		int record = index >= 0 && index < recordCount && nameAt(records[index], name) ? records[index] : recordOf(name);
+
+		if (record == -1) {
+			return null;
+		}
+
+		int flags = CentralDirectory.readShort(directory, record + 8);
+		int method = CentralDirectory.readShort(directory, record + 10);
+		long compressedSize = CentralDirectory.readInt(directory, record + 20) & 0xFFFFFFFFL;
+		long size = CentralDirectory.readInt(directory, record + 24) & 0xFFFFFFFFL;
+		long localHeader = CentralDirectory.readInt(directory, record + 42) & 0xFFFFFFFFL;
+
+		if ((flags & 1) != 0 || (method != STORED && method != DEFLATED)
+			|| compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeader == 0xFFFFFFFFL) {
+			return null; // encrypted or zip64
+		}
+
+		byte[] header = new byte[LOCAL_HEADER_SIZE];
+		readFully(header, localHeader);
+
+		if (CentralDirectory.readInt(header, 0) != LOCAL_SIGNATURE) {
+			throw new ZipException("Invalid local header for " + name + " in " + jar.getAbsolutePath());
+		}
+
+		long data = localHeader + LOCAL_HEADER_SIZE + CentralDirectory.readShort(header, 26) + CentralDirectory.readShort(header, 28);
+		RegionInputStream raw = new RegionInputStream(data, compressedSize);
+
+		return method == STORED ? raw : new PooledInflaterInputStream(raw, size);
+	}
+
+	/**
+	 * @return how many entries there are, or -1 if the JarFile has to enumerate them (e.g. zip64)
+	 */
+	int entryCount() throws IOException {
+		return readDirectory() && !zip64 ? recordCount : -1;
+	}
+
+	/**
+	 * Makes the entry at this position from its central directory record, as a JarFile enumerating the jar would. The
+	 * directory doesn't change once read, so any number of threads can do this at once (after entryCount).
+	 */
+	JarEntry entry(int index) {
+		int record = records[index];
+		int nameLength = CentralDirectory.readShort(directory, record + 28);
+		int extraLength = CentralDirectory.readShort(directory, record + 30);
+		int time = CentralDirectory.readShort(directory, record + 12);
+		int date = CentralDirectory.readShort(directory, record + 14);
+
+		JarEntry entry = new JarEntry(new String(directory, record + CENTRAL_HEADER_SIZE, nameLength, EntryTable.UTF8));
+		entry.setMethod(CentralDirectory.readShort(directory, record + 10));
+		entry.setCrc(CentralDirectory.readInt(directory, record + 16) & 0xFFFFFFFFL);
+		entry.setCompressedSize(CentralDirectory.readInt(directory, record + 20) & 0xFFFFFFFFL);
+		entry.setSize(CentralDirectory.readInt(directory, record + 24) & 0xFFFFFFFFL);
+		entry.setTime(new GregorianCalendar(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0x0f) - 1, date & 0x1f,
+			(time >> 11) & 0x1f, (time >> 5) & 0x3f, (time << 1) & 0x3e).getTimeInMillis());
+
+		if (extraLength > 0) { // any extended timestamps in it take the place of the DOS time, as they do for a JarFile
+			int extra = record + CENTRAL_HEADER_SIZE + nameLength;
+			entry.setExtra(Arrays.copyOfRange(directory, extra, extra + extraLength));
+		}
+
+		return entry;
+	}
+
+	synchronized void close() {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// nothing we can do
+			}
+
+			raf = null;
+		}
+	}
+
+	private synchronized boolean readDirectory() throws IOException {
+		if (records != null) {
+			return directory != null;
+		}
+
+		records = new int[0];
+		raf = new RandomAccessFile(jar, "r");
+
+		CentralDirectory cd = CentralDirectory.locate(raf);
+
+		if (cd == null || cd.offset == -1 || cd.size > Integer.MAX_VALUE) {
+			return false;
+		}
+
+		byte[] bytes = CentralDirectory.read(raf, cd.offset, (int) cd.size);
+		int[] found = new int[Math.max(cd.entries, 16)];
+		int count = 0;
+		int pos = 0;
+
+		while (pos + CENTRAL_HEADER_SIZE <= bytes.length && CentralDirectory.readInt(bytes, pos) == CENTRAL_SIGNATURE) {
+			if (count == found.length) {
+				found = Arrays.copyOf(found, count * 2);
+			}
+
+			found[count++] = pos;
+
+			if (CentralDirectory.readInt(bytes, pos + 20) == -1 || CentralDirectory.readInt(bytes, pos + 24) == -1 || CentralDirectory.readInt(bytes, pos + 42) == -1) {
+				zip64 = true;
+			}
+
+			pos += CENTRAL_HEADER_SIZE + CentralDirectory.readShort(bytes, pos + 28) + CentralDirectory.readShort(bytes, pos + 30) + CentralDirectory.readShort(bytes, pos + 32);
+		}
+
+		records = found;
+		recordCount = count;
+		directory = bytes;
+
+		return true;
+	}
+
+	/**
+	 * @return true if the record is for the entry with this name
+	 */
+	private boolean nameAt(int record, String name) {
+		int nameLength = CentralDirectory.readShort(directory, record + 28);
+		int start = record + CENTRAL_HEADER_SIZE;
+
+		if (nameLength != name.length()) {
+			// a name with anything but ASCII in it is longer in bytes than in chars
+			return nameLength > name.length() && new String(directory, start, nameLength, EntryTable.UTF8).equals(name);
+		}
+
+		for (int i = 0; i < nameLength; i++) {
+			byte b = directory[start + i];
+
+			if (b < 0) {
+				return new String(directory, start, nameLength, EntryTable.UTF8).equals(name);
+			}
+
+			if (b != name.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Finds an entry that wasn't where we expected, making the names of all of them the first time it is needed.
+	 *
+	 * @return the start of its record, or -1 if there is no such entry
+	 */
+	private synchronized int recordOf(String name) {
+		if (recordsByName == null) {
+			recordsByName = new HashMap<>();
+
+			for (int i = 0; i < recordCount; i++) {
+				int nameLength = CentralDirectory.readShort(directory, records[i] + 28);
+
+				recordsByName.put(new String(directory, records[i] + CENTRAL_HEADER_SIZE, nameLength, EntryTable.UTF8), records[i]);
+			}
+		}
+
+		Integer record = recordsByName.get(name);
+
+		return record == null ? -1 : record;
+	}
+
+	private void readFully(byte[] buffer, long position) throws IOException {
+		int done = 0;
+
+		while (done < buffer.length) {
+			int read = read(position + done, buffer, done, buffer.length - done);
+
+			if (read == -1) {
+				throw new EOFException("Unexpected end of " + jar.getAbsolutePath());
+			}
+
+			done += read;
+		}
+	}
+
+	private synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+		if (raf == null) {
+			throw new IOException("Jar " + jar.getAbsolutePath() + " has been closed");
+		}
+
+		raf.seek(position);
+
+		return raf.read(b, off, len);
+	}
+
+	/**
+	 * The raw bytes of one entry. Each read says where it is from, so many of these can be read at once.
+	 */
+	class RegionInputStream extends InputStream {
+		private long position;
+		private long remaining;
+
+		RegionInputStream(long position, long length) {
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+
+			int read = JarEntryReader.this.read(position, b, off, (int) Math.min(len, remaining));
+
+			if (read == -1) {
+				throw new EOFException("Unexpected end of " + jar.getAbsolutePath());
+			}
+
+			position += read;
+			remaining -= read;
+
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Inflates an entry using a pooled Inflater and buffer, which go back to the pool when it is closed.
+	 */
+	class PooledInflaterInputStream extends InputStream {
+		private final RegionInputStream raw;
+		private Inflater inflater;
+		private byte[] buffer;
+		private long remaining;
+		private boolean dummyByteSupplied;
+
+		PooledInflaterInputStream(RegionInputStream raw, long size) {
+			this.raw = raw;
+			this.remaining = size;
+			this.inflater = pool.borrowInflater();
+			this.buffer = pool.borrowBuffer();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (inflater == null) {
+				throw new IOException("Stream closed");
+			}
+
+			if (len == 0) {
+				return 0;
+			}
+
+			try {
+				int inflated;
+
+				while ((inflated = inflater.inflate(b, off, len)) == 0) {
+					if (inflater.finished() || inflater.needsDictionary()) {
+						return -1;
+					}
+
+					if (inflater.needsInput()) {
+						fill();
+					}
+				}
+
+				remaining -= inflated;
+
+				return inflated;
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage() == null ? "Invalid deflated data in " + jar.getAbsolutePath() : e.getMessage());
+			}
+		}
+
+		private void fill() throws IOException {
+			int read = raw.read(buffer, 0, buffer.length);
+
+			if (read == -1) {
+				if (dummyByteSupplied) {
+					throw new EOFException("Unexpected end of deflated data in " + jar.getAbsolutePath());
+				}
+
+				// nowrap inflaters may need an extra byte to know they are finished
+				buffer[0] = 0;
+				read = 1;
+				dummyByteSupplied = true;
+			}
+
+			inflater.setInput(buffer, 0, read);
+		}
+
+		@Override
+		public int available() {
+			return inflater == null || inflater.finished() ? 0 : (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() {
+			if (inflater != null) {
+				pool.returnInflater(inflater);
+				pool.returnBuffer(buffer);
+
+				inflater = null;
+				buffer = null;
+			}
+		}
+	}
+}
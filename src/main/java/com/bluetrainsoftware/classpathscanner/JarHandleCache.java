@@ -0,0 +1,220 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * Keeps jars open between scans and deliveries, so a REPEAT scan or a listener reading a resource later doesn't reopen
+ * the jar and parse its central directory all over again. At most maxOpen jars are kept open, the least recently used
+ * going first, and any that haven't been used for idleMillis are closed.
+ *
+ * A handle is never closed while it is in use - if every handle is in use we will go over maxOpen until some are given
+ * back. Evicting a jar (e.g. its classloader was released) closes it as soon as the last user is done.
+ *
+ * Each handle remembers the length, modification time and file key of the jar it opened. A jar that has been rewritten
+ * since gets a fresh handle, the old one is closed once its last user is done with it.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class JarHandleCache {
+	private static final Logger log = LoggerFactory.getLogger(JarHandleCache.class);
+
+	static class Handle {
+		final File file;
+		private final long length;
+		private final long lastModified;
+		private final Object fileKey;
+		private JarFile jar;
+		private JarEntryReader reader;
+		private int users;
+		private long lastUsed;
+		private boolean evicted;
+
+		Handle(File file) {
+			this.file = file;
+
+			BasicFileAttributes attributes = attributes(file);
+
+			this.length = attributes == null ? -1 : attributes.size();
+			this.lastModified = attributes == null ? -1 : attributes.lastModifiedTime().toMillis();
+			this.fileKey = attributes == null ? null : attributes.fileKey();
+		}
+
+		/**
+		 * @return true if the jar is still the one this handle was made for
+		 */
+		boolean isCurrent() {
+			BasicFileAttributes attributes = attributes(file);
+
+			return attributes != null && attributes.size() == length && attributes.lastModifiedTime().toMillis() == lastModified
+				&& (fileKey == null ? attributes.fileKey() == null : fileKey.equals(attributes.fileKey()));
+		}
+
+		/**
+		 * @return the jar file, opened the first time it is needed
+		 */
+		synchronized JarFile jar() throws IOException {
+			if (jar == null) {
+				jar = new JarFile(file);
+			}
+
+			return jar;
+		}
+
+		/**
+		 * @return a reader using this pool, or null if there isn't one
+		 */
+		synchronized JarEntryReader reader(InflaterPool pool) {
+			if (reader == null && pool != null) {
+				reader = new JarEntryReader(file, pool);
+			}
+
+			return reader;
+		}
+
+		private synchronized void close() {
+			if (reader != null) {
+				reader.close();
+				reader = null;
+			}
+
+			if (jar != null) {
+				try {
+					jar.close();
+				} catch (IOException e) {
+					log.error("Unable to close jar file {}", file);
+				}
+
+				jar = null;
+			}
+		}
+	}
+
+	private final int maxOpen;
+	private final long idleMillis;
+	private final LinkedHashMap<File, Handle> handles = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+
+	/**
+	 * @param maxOpen - the most jars to keep open once they have been given back
+	 * @param idleMillis - close jars that haven't been used for this long, 0 to keep them until they are pushed out
+	 */
+	JarHandleCache(int maxOpen, long idleMillis) {
+		this.maxOpen = maxOpen;
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * @return the handle for this jar, which must be released when finished with
+	 */
+	synchronized Handle acquire(File file) {
+		Handle handle = handles.get(file);
+
+		if (handle != null && !handle.isCurrent()) {
+			evict(file); // the jar has been rewritten, its central directory is no longer any use
+			handle = null;
+		}
+
+		if (handle == null) {
+			handle = new Handle(file);
+			handles.put(file, handle);
+		}
+
+		handle.users++;
+
+		return handle;
+	}
+
+	synchronized void release(Handle handle) {
+		handle.users--;
+		handle.lastUsed = System.currentTimeMillis();
+
+		if (handle.users == 0 && handle.evicted) {
+			handle.close();
+		}
+
+		closeExcess();
+	}
+
+	/**
+	 * Stops keeping this jar open, it is closed now or when the last user gives it back.
+	 */
+	synchronized void evict(File file) {
+		Handle handle = handles.remove(file);
+
+		if (handle != null) {
+			handle.evicted = true;
+
+			if (handle.users == 0) {
+				handle.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes anything that hasn't been used for idleMillis (and anything over maxOpen).
+	 */
+	synchronized void closeIdle() {
+		if (idleMillis > 0) {
+			long idleSince = System.currentTimeMillis() - idleMillis;
+
+			for (Iterator<Handle> it = handles.values().iterator(); it.hasNext(); ) {
+				Handle handle = it.next();
+
+				if (handle.users == 0 && handle.lastUsed < idleSince) {
+					it.remove();
+					handle.close();
+				}
+			}
+		}
+
+		closeExcess();
+	}
+
+	private void closeExcess() {
+		for (Iterator<Handle> it = handles.values().iterator(); handles.size() > maxOpen && it.hasNext(); ) {
+			Handle handle = it.next();
+
+			if (handle.users == 0) {
+				it.remove();
+				handle.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes everything not in use, and everything else as it is given back.
+	 */
+	synchronized void closeAll() {
+		List<File> files = new ArrayList<>(handles.keySet());
+
+		for (File file : files) {
+			evict(file);
+		}
+	}
+
+	private static BasicFileAttributes attributes(File file) {
+		try {
+			return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	synchronized int size() {
+		return handles.size();
+	}
+
+	long getIdleMillis() {
+		return idleMillis;
+	}
+}
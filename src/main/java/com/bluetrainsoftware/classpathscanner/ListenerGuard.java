@@ -0,0 +1,193 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps one listener from holding up (or breaking) the scan for everyone else. Each batch a listener is given (and each
+ * of its other calls) is timed, slow batches are logged, and a listener that goes over its budget for a batch or for the whole scan - or fails, if
+ * we have been asked to - is told nothing more for the rest of the scan.
+ *
+ * A batch can only be cut short if it is run on another thread, so that only happens when there is a batch budget.
+ * A listener that ignores being interrupted keeps its thread until it finishes, but is never given anything else.
+ *
+ * One of these is used for each scan.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class ListenerGuard {
+	private static final Logger log = LoggerFactory.getLogger(ListenerGuard.class);
+
+	static class Timing {
+		final AtomicLong nanos = new AtomicLong();
+		final AtomicLong batches = new AtomicLong();
+		volatile long slowestNanos;
+	}
+
+	private final long batchMillis;
+	private final long scanMillis;
+	private final long slowMillis;
+	private final boolean disableFailing;
+	private final ExecutorService executor;
+
+	private final ConcurrentHashMap<ResourceScanListener, Timing> timings = new ConcurrentHashMap<>();
+	private final Set<ResourceScanListener> disabled = Collections.newSetFromMap(new ConcurrentHashMap<ResourceScanListener, Boolean>());
+
+	/**
+	 * @param batchMillis - the longest a listener may take with one batch, 0 for no limit
+	 * @param scanMillis - the longest a listener may take over the whole scan, 0 for no limit
+	 * @param slowMillis - batches that take longer than this are logged, 0 to not bother
+	 * @param disableFailing - stop telling a listener about things once it throws an exception, rather than stopping the scan
+	 * @param executor - where batches are run when there is a batch limit
+	 */
+	ListenerGuard(long batchMillis, long scanMillis, long slowMillis, boolean disableFailing, ExecutorService executor) {
+		this.batchMillis = batchMillis;
+		this.scanMillis = scanMillis;
+		this.slowMillis = slowMillis;
+		this.disableFailing = disableFailing;
+		this.executor = batchMillis > 0 ? executor : null;
+	}
+
+	/**
+	 * @return true if batches are run on another thread, so anything they are given must not change underneath them
+	 */
+	boolean isolating() {
+		return executor != null;
+	}
+
+	boolean isDisabled(ResourceScanListener listener) {
+		return disabled.contains(listener);
+	}
+
+	/**
+	 * Runs one batch for this listener, unless it has already been disabled.
+	 */
+	void run(ResourceScanListener listener, Callable<Void> batch) throws Exception {
+		call(listener, batch);
+	}
+
+	/**
+	 * Makes any call on the listener (a batch, or asking if it is interested, or telling it the scan is starting), under
+	 * the same budget and failure handling as a batch.
+	 *
+	 * @return what the listener returned, or null if it is disabled (or has just been)
+	 */
+	<T> T call(ResourceScanListener listener, Callable<T> call) throws Exception {
+		if (isDisabled(listener)) {
+			return null;
+		}
+
+		long start = System.nanoTime();
+
+		try {
+			return executor == null ? call.call() : callWithDeadline(listener, call);
+		} catch (Exception e) {
+			if (!disableFailing) {
+				throw e;
+			}
+
+			disable(listener, "failed", e);
+
+			return null;
+		} finally {
+			record(listener, System.nanoTime() - start);
+		}
+	}
+
+	private <T> T callWithDeadline(ResourceScanListener listener, Callable<T> call) throws Exception {
+		Future<T> running = executor.submit(call);
+
+		try {
+			return running.get(batchMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// disabled first, so the batch sees it as soon as it is interrupted
+			disable(listener, "took longer than " + batchMillis + "ms with one batch", null);
+			running.cancel(true);
+
+			return null;
+		} catch (InterruptedException e) {
+			running.cancel(true);
+			Thread.currentThread().interrupt();
+
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+	private void record(ResourceScanListener listener, long elapsed) {
+		Timing timing = timings.get(listener);
+
+		if (timing == null) {
+			timing = new Timing();
+			Timing existing = timings.putIfAbsent(listener, timing);
+
+			if (existing != null) {
+				timing = existing;
+			}
+		}
+
+		long total = timing.nanos.addAndGet(elapsed);
+		timing.batches.incrementAndGet();
+
+		if (elapsed > timing.slowestNanos) {
+			timing.slowestNanos = elapsed;
+		}
+
+		if (slowMillis > 0 && TimeUnit.NANOSECONDS.toMillis(elapsed) > slowMillis) {
+			log.warn("classpath scan: listener {} took {}ms with one batch", listener, TimeUnit.NANOSECONDS.toMillis(elapsed));
+		}
+
+		if (scanMillis > 0 && TimeUnit.NANOSECONDS.toMillis(total) > scanMillis) {
+			disable(listener, "has taken longer than " + scanMillis + "ms in this scan", null);
+		}
+	}
+
+	private void disable(ResourceScanListener listener, String why, Exception e) {
+		if (disabled.add(listener)) {
+			if (e == null) {
+				log.error("classpath scan: listener {} {}, it will not be told about anything else in this scan", listener, why);
+			} else {
+				log.error(String.format("classpath scan: listener %s %s, it will not be told about anything else in this scan", listener, why), e);
+			}
+		}
+	}
+
+	/**
+	 * @return how long each listener spent with its batches
+	 */
+	Map<ResourceScanListener, Timing> getTimings() {
+		return timings;
+	}
+
+	/**
+	 * Logs how long the listeners took, at the end of the scan.
+	 */
+	void report() {
+		if (log.isDebugEnabled()) {
+			for (Map.Entry<ResourceScanListener, Timing> timing : timings.entrySet()) {
+				log.debug("classpath scan: listener {} took {}ms over {} batches, slowest {}ms{}", timing.getKey(),
+					TimeUnit.NANOSECONDS.toMillis(timing.getValue().nanos.get()), timing.getValue().batches.get(),
+					TimeUnit.NANOSECONDS.toMillis(timing.getValue().slowestNanos), isDisabled(timing.getKey()) ? " (disabled)" : "");
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Works out which entries of a multi-release jar are the effective ones for a Java version, so listeners see each
+ * resource once - the base entry, or the copy under META-INF/versions/N/ with the highest N not above the version.
+ * The versioned copy takes the place of the base entry (with the base entry's name), versioned entries with no base
+ * entry are delivered where they are with the name they would have in the base, and everything else under
+ * META-INF/versions/ is left out. As with a JarFile, versions below 9 are never used.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class MultiRelease {
+	static final String VERSIONS = "META-INF/versions/";
+	/**
+	 * Multi-release jars came with Java 9, a JarFile ignores anything under a lower version.
+	 */
+	static final int FIRST_VERSION = 9;
+	private static final byte[] VERSIONS_BYTES = VERSIONS.getBytes(EntryTable.UTF8);
+	private static final Attributes.Name MULTI_RELEASE = new Attributes.Name("Multi-Release");
+
+	/**
+	 * The feature version of the running Java, e.g. 8 for 1.8 and 11 for 11.
+	 */
+	static final int RUNTIME_VERSION = javaVersion(System.getProperty("java.specification.version", "1.7"));
+
+	/**
+	 * For each entry, the entry to deliver in its place or -1 for nothing.
+	 */
+	private final int[] effective;
+	/**
+	 * The name to deliver each entry under if it isn't its own, only versioned entries with no base entry have one.
+	 */
+	private final String[] names;
+
+	private MultiRelease(int[] effective, String[] names) {
+		this.effective = effective;
+		this.names = names;
+	}
+
+	static int javaVersion(String specification) {
+		try {
+			return Integer.parseInt(specification.startsWith("1.") ? specification.substring(2) : specification);
+		} catch (NumberFormatException e) {
+			return 7;
+		}
+	}
+
+	static boolean isMultiRelease(JarFile jf) {
+		try {
+			Manifest manifest = jf.getManifest();
+
+			return manifest != null && "true".equalsIgnoreCase(manifest.getMainAttributes().getValue(MULTI_RELEASE));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param name - a name from the jar
+	 * @return the version of the META-INF/versions/N/ directory the name is in, or -1 if it isn't in one
+	 */
+	static int version(String name) {
+		if (!name.startsWith(VERSIONS)) {
+			return -1;
+		}
+
+		int slash = name.indexOf('/', VERSIONS.length());
+
+		try {
+			return slash == -1 ? -1 : Integer.parseInt(name.substring(VERSIONS.length(), slash));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the name a versioned entry has in the base of the jar, or null if it isn't versioned (or its version is one
+	 * that is never used)
+	 */
+	static String baseName(String name) {
+		return version(name) < FIRST_VERSION ? null : name.substring(name.indexOf('/', VERSIONS.length()) + 1);
+	}
+
+	/**
+	 * @return true if anything in the table is under META-INF/versions/, i.e. it is worth looking at the manifest
+	 */
+	static boolean hasVersionedEntries(EntryTable table) {
+		for (int i = 0; i < table.size(); i++) {
+			if (table.startsWith(i, VERSIONS_BYTES)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param table - every entry of the jar
+	 * @param version - the Java version to resolve for
+	 */
+	static MultiRelease resolve(EntryTable table, int version) {
+		int[] effective = new int[table.size()];
+		String[] names = new String[table.size()];
+		Map<String, Integer> best = new HashMap<>();
+		Map<String, Integer> bestVersion = new HashMap<>();
+
+		for (int i = 0; i < table.size(); i++) {
+			effective[i] = i;
+
+			if (!table.startsWith(i, VERSIONS_BYTES)) {
+				continue;
+			}
+
+			String name = table.name(i);
+			int entryVersion = version(name);
+
+			if (entryVersion < 0) {
+				continue; // not a versioned entry, e.g. META-INF/versions/ itself
+			}
+
+			effective[i] = -1;
+
+			if (entryVersion < FIRST_VERSION || entryVersion > version) {
+				continue;
+			}
+
+			String base = baseName(name);
+
+			if (base.length() == 0 || base.endsWith("/")) {
+				continue;
+			}
+
+			Integer previous = bestVersion.get(base);
+
+			if (previous == null || previous < entryVersion) {
+				best.put(base, i);
+				bestVersion.put(base, entryVersion);
+			}
+		}
+
+		for (Map.Entry<String, Integer> versioned : best.entrySet()) {
+			int base = table.find(versioned.getKey());
+
+			if (base == -1) {
+				effective[versioned.getValue()] = versioned.getValue();
+				names[versioned.getValue()] = versioned.getKey();
+			} else {
+				effective[base] = versioned.getValue();
+			}
+		}
+
+		return new MultiRelease(effective, names);
+	}
+
+	/**
+	 * @return the entry to deliver in place of this one, -1 for none
+	 */
+	int effective(int index) {
+		return effective[index];
+	}
+
+	/**
+	 * @return the name to deliver the entry in this place under, or null if it is the name of the entry in this place
+	 */
+	String name(int index) {
+		return names[index];
+	}
+}
@@ -0,0 +1,155 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A Bloom filter over the packages (directories) of a jar. Each package is added along with all of its parents, so
+ * asking about com/acme tells you if there might be anything in com/acme or below it. A "no" is always right, a "yes"
+ * is occasionally wrong.
+ *
+ * Packages may be given with / or . separators. They are full names within the jar - so inside a war they include any
+ * jar offset, e.g. WEB-INF/classes/com/acme. The packages under META-INF/versions/N/ of a multi-release jar are also
+ * added as the packages they are versions of.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class PackageFilter {
+	private static final int BITS_PER_PACKAGE = 10;
+	private static final int HASHES = 3;
+
+	private final long[] bits;
+	private final int numBits;
+	private final int packages;
+
+	private PackageFilter(Set<String> packageNames) {
+		this.packages = packageNames.size();
+		this.numBits = Math.max(64, packages * BITS_PER_PACKAGE);
+		this.bits = new long[(numBits + 63) / 64];
+
+		for (String packageName : packageNames) {
+			int h1 = packageName.hashCode();
+			int h2 = secondHash(packageName);
+
+			for (int i = 0; i < HASHES; i++) {
+				int bit = bit(h1, h2, i);
+
+				bits[bit >>> 6] |= 1L << bit;
+			}
+		}
+	}
+
+	public static PackageFilter of(EntryTable table) {
+		Set<String> packageNames = new HashSet<>();
+		int lastPrefix = -2;
+
+		for (int i = 0; i < table.size(); i++) {
+			int prefix = table.prefixOffset(i);
+
+			if (prefix != lastPrefix && prefix != -1) {
+				String name = table.prefix(i);
+
+				addPackages(packageNames, name);
+
+				// a multi-release jar may have a package only for some versions, it is still the package it would be in the base
+				String base = MultiRelease.baseName(name);
+
+				if (base != null) {
+					addPackages(packageNames, base);
+				}
+			}
+
+			lastPrefix = prefix;
+		}
+
+		return new PackageFilter(packageNames);
+	}
+
+	/**
+	 * Adds the package and all of its parents.
+	 */
+	private static void addPackages(Set<String> packageNames, String name) {
+		for (int slash = name.length() - 1; slash > 0; slash = name.lastIndexOf('/', slash - 1)) {
+			if (!packageNames.add(name.substring(0, slash))) {
+				break; // so are all of the parents
+			}
+		}
+	}
+
+	/**
+	 * @param packageName - e.g. com/acme or com.acme
+	 * @return false if there is definitely nothing in that package or below it
+	 */
+	public boolean mightContain(String packageName) {
+		return mightContainExactly(normalise(packageName));
+	}
+
+	/**
+	 * @param name - the package exactly as it appears in the jar, without the trailing / (e.g. WEB-INF/lib/my-1.0/com/acme)
+	 */
+	boolean mightContainExactly(String name) {
+		if (name.length() == 0) {
+			return true;
+		}
+
+		int h1 = name.hashCode();
+		int h2 = secondHash(name);
+
+		for (int i = 0; i < HASHES; i++) {
+			int bit = bit(h1, h2, i);
+
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public boolean mightContainAny(Collection<String> packageNames) {
+		for (String packageName : packageNames) {
+			if (mightContain(packageName)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the number of packages (including parents) in the filter
+	 */
+	public int getPackageCount() {
+		return packages;
+	}
+
+	static String normalise(String packageName) {
+		String name = packageName.replace('.', '/');
+
+		while (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+
+		while (name.endsWith("/")) {
+			name = name.substring(0, name.length() - 1);
+		}
+
+		return name;
+	}
+
+	private int bit(int h1, int h2, int i) {
+		return ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+	}
+
+	private static int secondHash(String s) {
+		int h = 0x811C9DC5;
+
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+
+		return h | 1;
+	}
+}
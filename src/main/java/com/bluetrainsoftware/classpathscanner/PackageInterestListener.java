@@ -0,0 +1,16 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.util.Collection;
+
+/**
+ * A listener that is only ever interested in certain packages. Jars that definitely contain none of them are skipped
+ * without asking the listener, using each jar's PackageFilter.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public interface PackageInterestListener extends ResourceScanListener {
+	/**
+	 * @return the packages (and everything below them) this listener cares about, e.g. com/acme or com.acme
+	 */
+	Collection<String> getInterestingPackages();
+}
@@ -0,0 +1,143 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads (and inflates) the next few desired resources in the background while the listener is busy with the current one,
+ * so when it is delivered the bytes are already in memory. The number of resources and the number of bytes being held
+ * at any one time are both limited. Resources whose size is unknown or too big for the budget are simply opened when
+ * their turn comes.
+ *
+ * The resources must be opened in order.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class ReadAhead {
+	interface Source {
+		InputStream open(ResourceScanListener.ScanResource resource) throws IOException;
+
+		/**
+		 * @return the uncompressed size or -1 if we don't know
+		 */
+		long size(ResourceScanListener.ScanResource resource);
+	}
+
+	private final List<ResourceScanListener.ScanResource> desired;
+	private final Source source;
+	private final ExecutorService executor;
+	private final int depth;
+	private final long byteBudget;
+
+	private final Map<Integer, Future<byte[]>> pending = new HashMap<>();
+	private int scheduled;
+	private long bytesInFlight;
+
+	ReadAhead(List<ResourceScanListener.ScanResource> desired, Source source, ExecutorService executor, int depth, long byteBudget) {
+		this.desired = desired;
+		this.source = source;
+		this.executor = executor;
+		this.depth = depth;
+		this.byteBudget = byteBudget;
+	}
+
+	/**
+	 * @param index - the position in the desired list, each one must be greater than the last
+	 * @return the content of the resource
+	 */
+	InputStream open(int index) throws IOException {
+		Future<byte[]> prefetched = pending.remove(index);
+
+		if (prefetched != null) {
+			bytesInFlight -= source.size(desired.get(index));
+		}
+
+		if (scheduled <= index) {
+			scheduled = index + 1;
+		}
+
+		fill();
+
+		if (prefetched == null) {
+			return source.open(desired.get(index));
+		}
+
+		try {
+			return new ByteArrayInputStream(prefetched.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("Interrupted waiting for " + desired.get(index).resourceName);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+
+			throw new IOException("Unable to read " + desired.get(index).resourceName, e.getCause());
+		}
+	}
+
+	/**
+	 * Stops any reading that is no longer required (e.g. the listener failed). Reads already under way are left to
+	 * finish rather than interrupted, as the jar they are reading is shared.
+	 */
+	void close() {
+		for (Future<byte[]> future : pending.values()) {
+			future.cancel(false);
+		}
+
+		pending.clear();
+	}
+
+	private void fill() {
+		while (scheduled < desired.size() && pending.size() < depth) {
+			final ResourceScanListener.ScanResource resource = desired.get(scheduled);
+			final long size = source.size(resource);
+
+			if (size < 0 || size > byteBudget) { // read it when we get to it
+				scheduled++;
+				continue;
+			}
+
+			if (bytesInFlight + size > byteBudget) {
+				break;
+			}
+
+			pending.put(scheduled, executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return readFully(source.open(resource), size);
+				}
+			}));
+
+			bytesInFlight += size;
+			scheduled++;
+		}
+	}
+
+	static byte[] readFully(InputStream stream, long expectedSize) throws IOException {
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream(Math.max((int) expectedSize, 32));
+			byte[] buf = new byte[8192];
+			int read;
+
+			while ((read = stream.read(buf)) != -1) {
+				content.write(buf, 0, read);
+			}
+
+			return content.toByteArray();
+		} finally {
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.util.List;
+
+/**
+ * A listener that asks for InterestAction.CHANGES can implement this to also be told when resources it was previously
+ * given have disappeared. Jars that have not changed since the last scan are skipped entirely.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public interface ResourceChangeListener extends ResourceScanListener {
+	/**
+	 * These resources were there the last time this listener was told about the jar or directory, but have gone now. They
+	 * cannot be delivered.
+	 *
+	 * @param removed - the resources that are no longer there
+	 */
+	void removed(List<ScanResource> removed);
+}
@@ -0,0 +1,70 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies a particular version of a jar - if the length, modification time and central directory checksum are all the
+ * same then the jar has not changed and its entries do not need to be looked at again.
+ *
+ * Directories have no identity as a change to any file below them is not reflected in the directory itself.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class ResourceIdentity {
+	private static final Logger log = LoggerFactory.getLogger(ResourceIdentity.class);
+
+	public final long length;
+	public final long lastModified;
+	public final long centralDirectoryCrc;
+
+	public ResourceIdentity(long length, long lastModified, long centralDirectoryCrc) {
+		this.length = length;
+		this.lastModified = lastModified;
+		this.centralDirectoryCrc = centralDirectoryCrc;
+	}
+
+	/**
+	 * @param file - the jar
+	 * @return the identity of the jar as it is right now, or null if it is a directory or can't be read
+	 */
+	public static ResourceIdentity of(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try {
+			return new ResourceIdentity(file.length(), file.lastModified(), CentralDirectory.checksum(file));
+		} catch (IOException e) {
+			log.debug("Unable to determine identity of {}", file.getAbsolutePath(), e);
+
+			return null;
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		ResourceIdentity that = (ResourceIdentity) o;
+
+		return length == that.length && lastModified == that.lastModified && centralDirectoryCrc == that.centralDirectoryCrc;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = (int) (length ^ (length >>> 32));
+		result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+		result = 31 * result + (int) (centralDirectoryCrc ^ (centralDirectoryCrc >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "length=" + length + ", lastModified=" + lastModified + ", cd crc=" + Long.toHexString(centralDirectoryCrc);
+	}
+}
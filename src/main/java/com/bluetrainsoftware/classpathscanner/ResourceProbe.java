@@ -0,0 +1,99 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The start of a classpath resource's file and its manifest, each read the first time anyone asks and then shared by
+ * every specialist deciding whether the resource is theirs, so the file is looked at once however many specialists
+ * there are.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class ResourceProbe {
+	private static final Logger log = LoggerFactory.getLogger(ResourceProbe.class);
+	/**
+	 * How much of the start of the file is read - enough to get past a launch script to the magic of most formats
+	 */
+	public static final int HEADER_SIZE = 512;
+
+	private final File file;
+	private final JarHandleCache handles;
+	private byte[] header;
+	private Manifest manifest;
+	private boolean manifestRead;
+
+	ResourceProbe(File file, JarHandleCache handles) {
+		this.file = file;
+		this.handles = handles;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return up to the first HEADER_SIZE bytes of the file, empty if it can't be read
+	 */
+	public synchronized byte[] getHeader() {
+		if (header == null) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				byte[] bytes = new byte[(int) Math.min(HEADER_SIZE, raf.length())];
+				raf.readFully(bytes);
+				header = bytes;
+			} catch (IOException e) {
+				log.debug("Unable to read the start of {}", file, e);
+
+				header = new byte[0];
+			}
+		}
+
+		return header;
+	}
+
+	/**
+	 * @return true if the file has these bytes at this offset
+	 */
+	public boolean hasBytes(int offset, byte[] bytes) {
+		byte[] start = getHeader();
+
+		return offset + bytes.length <= start.length && Arrays.equals(Arrays.copyOfRange(start, offset, offset + bytes.length), bytes);
+	}
+
+	/**
+	 * @return the manifest, or null if the file isn't a jar or has none. The jar is borrowed from the scanner's kept open
+	 * jars if it has them, so the default handling doesn't have to open it again.
+	 */
+	public synchronized Manifest getManifest() {
+		if (!manifestRead) {
+			manifestRead = true;
+
+			JarHandleCache.Handle handle = handles == null ? null : handles.acquire(file);
+
+			try {
+				if (handle != null) {
+					manifest = handle.jar().getManifest();
+				} else {
+					try (JarFile jf = new JarFile(file)) {
+						manifest = jf.getManifest();
+					}
+				}
+			} catch (IOException e) {
+				log.debug("No manifest in {}", file, e);
+			} finally {
+				if (handle != null) {
+					handles.release(handle);
+				}
+			}
+		}
+
+		return manifest;
+	}
+}
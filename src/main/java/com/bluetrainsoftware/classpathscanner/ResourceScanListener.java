@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.Collection;
 import java.util.List;
 import java.util.jar.JarEntry;
 
@@ -30,7 +31,8 @@ public interface ResourceScanListener {
 	enum InterestAction {
 		NONE, // not interesting
 		ONCE, // tell me once, delete me after that
-		REPEAT // tell me each time a scan happens but no more
+		REPEAT, // tell me each time a scan happens but no more
+		CHANGES // tell me everything the first time, after that only what was added or changed since (see ResourceChangeListener)
 	}
 
 	enum ScanAction {
@@ -62,13 +64,22 @@ public interface ResourceScanListener {
 		 *
 		 */
 		public final String resourceName;
+		/**
+		 * The position of the entry in its jar, so it can be read without looking it up by name (-1 if we don't know)
+		 */
+		final int entryIndex;
 
 		public ScanResource(URL url, JarEntry entry, String resourceName, URL offsetUrl) {
+			this(url, entry, resourceName, offsetUrl, -1);
+		}
+
+		ScanResource(URL url, JarEntry entry, String resourceName, URL offsetUrl, int entryIndex) {
 			this.url = url;
 			this.resourceName = resourceName;
 			this.entry = entry;
 			this.offsetUrl = offsetUrl;
 			this.file = null;
+			this.entryIndex = entryIndex;
 		}
 
 		public ScanResource(URL url, File file, String resourceName) {
@@ -78,6 +89,7 @@ public interface ResourceScanListener {
 			this.entry = null;
 			this.offsetUrl = url;
 			this.file = file;
+			this.entryIndex = -1;
 		}
 
 		private URL finalUrl = null;
@@ -175,9 +187,48 @@ public interface ResourceScanListener {
 			}
 		}
 
+		/**
+		 * The packages in the jar (if known) and the offset within the jar this resource starts at.
+		 */
+		private PackageFilter packageFilter;
+		private String jarOffset = "";
+
 		public boolean isTestDirectory() {
 			return directory != null && directory.getPath().endsWith(ClasspathResource.TARGET_TEST_CLASSES);
 		}
+
+		/**
+		 * @return a filter of the packages in the jar, or null if they aren't known (e.g. a directory). Its names include
+		 * any jar offset, use mightContainPackage to ignore that.
+		 */
+		public PackageFilter getPackageFilter() {
+			return packageFilter;
+		}
+
+		/**
+		 * @param packageName - e.g. com/acme or com.acme
+		 * @return false if this resource definitely has nothing in that package or below it
+		 */
+		public boolean mightContainPackage(String packageName) {
+			String name = PackageFilter.normalise(packageName);
+
+			return packageFilter == null || name.length() == 0 || packageFilter.mightContainExactly(jarOffset + name);
+		}
+
+		public boolean mightContainAnyPackage(Collection<String> packageNames) {
+			for (String packageName : packageNames) {
+				if (mightContainPackage(packageName)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		void setPackageFilter(PackageFilter packageFilter, String jarOffset) {
+			this.packageFilter = packageFilter;
+			this.jarOffset = jarOffset;
+		}
 	}
 
 	/**
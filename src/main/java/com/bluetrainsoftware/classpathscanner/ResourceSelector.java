@@ -0,0 +1,85 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+
+/**
+ * Describes the resources a ClasspathScannerSpecialist.Selective handles - a pattern the URL must contain, bytes the
+ * file must have at some offset and manifest attributes it must have. A resource has to match everything that has been
+ * set, and the cheapest checks are made first, so the manifest is only read if the URL and bytes match.
+ *
+ * e.g. new ResourceSelector().urlMatching("\\.jar$").manifestAttribute("Spring-Boot-Version", null)
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class ResourceSelector {
+	private Pattern urlPattern;
+	private int magicOffset;
+	private byte[] magic;
+	private final Map<String, String> manifestAttributes = new LinkedHashMap<>();
+
+	/**
+	 * @param regex - found somewhere in the URL of the resource
+	 */
+	public ResourceSelector urlMatching(String regex) {
+		this.urlPattern = Pattern.compile(regex);
+
+		return this;
+	}
+
+	/**
+	 * @param offset - where the bytes are in the file, which must be inside the first ResourceProbe.HEADER_SIZE bytes
+	 * @param bytes - e.g. PK\3\4 for a zip file that doesn't start with a launch script
+	 */
+	public ResourceSelector magic(int offset, byte[] bytes) {
+		if (offset < 0 || offset + bytes.length > ResourceProbe.HEADER_SIZE) {
+			throw new IllegalArgumentException("Magic bytes must be within the first " + ResourceProbe.HEADER_SIZE + " bytes");
+		}
+
+		this.magicOffset = offset;
+		this.magic = Arrays.copyOf(bytes, bytes.length);
+
+		return this;
+	}
+
+	/**
+	 * @param name - a main attribute of the manifest
+	 * @param value - the value it must have, or null for any value
+	 */
+	public ResourceSelector manifestAttribute(String name, String value) {
+		manifestAttributes.put(name, value);
+
+		return this;
+	}
+
+	public boolean matches(ClasspathResource resource, ResourceProbe probe) {
+		if (urlPattern != null && (resource.getUrl() == null || !urlPattern.matcher(resource.getUrl().toExternalForm()).find())) {
+			return false;
+		}
+
+		if (magic != null && !probe.hasBytes(magicOffset, magic)) {
+			return false;
+		}
+
+		if (manifestAttributes.size() > 0) {
+			Manifest manifest = probe.getManifest();
+
+			if (manifest == null) {
+				return false;
+			}
+
+			for (Map.Entry<String, String> attribute : manifestAttributes.entrySet()) {
+				String value = manifest.getMainAttributes().getValue(attribute.getKey());
+
+				if (value == null || (attribute.getValue() != null && !attribute.getValue().equals(value))) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+}
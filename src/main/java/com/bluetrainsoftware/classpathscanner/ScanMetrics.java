@@ -0,0 +1,92 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How the listeners were fed in a scan - the batch sizes the scanner settled on and how long each listener's
+ * resource() took with them.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class ScanMetrics {
+	public static class ListenerTiming {
+		/**
+		 * How many batches the listener was offered
+		 */
+		public final int batches;
+		/**
+		 * How many resources were in them
+		 */
+		public final long resources;
+		/**
+		 * The time spent in resource() deciding which were wanted, not counting delivery
+		 */
+		public final long resourceNanos;
+
+		public ListenerTiming(int batches, long resources, long resourceNanos) {
+			this.batches = batches;
+			this.resources = resources;
+			this.resourceNanos = resourceNanos;
+		}
+
+		@Override
+		public String toString() {
+			return batches + " batches, " + resources + " resources, " + resourceNanos / 1000000 + "ms";
+		}
+	}
+
+	private final int batches;
+	private final List<Integer> batchSizes;
+	private final int batchSize;
+	private final boolean heapPressure;
+	private final Map<ResourceScanListener, ListenerTiming> listenerTimings;
+
+	ScanMetrics(int batches, List<Integer> batchSizes, int batchSize, boolean heapPressure, Map<ResourceScanListener, ListenerTiming> listenerTimings) {
+		this.batches = batches;
+		this.batchSizes = Collections.unmodifiableList(new ArrayList<>(batchSizes));
+		this.batchSize = batchSize;
+		this.heapPressure = heapPressure;
+		this.listenerTimings = Collections.unmodifiableMap(new LinkedHashMap<>(listenerTimings));
+	}
+
+	/**
+	 * @return how many batches were offered to listeners, across all of them
+	 */
+	public int getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return the batch sizes chosen during the scan, in order, starting with the one it began with
+	 */
+	public List<Integer> getBatchSizes() {
+		return batchSizes;
+	}
+
+	/**
+	 * @return the batch size at the end of the scan, which the next scan starts with
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return true if batches were cut to the smallest size because the heap was nearly full
+	 */
+	public boolean isHeapPressure() {
+		return heapPressure;
+	}
+
+	public Map<ResourceScanListener, ListenerTiming> getListenerTimings() {
+		return listenerTimings;
+	}
+
+	@Override
+	public String toString() {
+		return batches + " batches, sizes " + batchSizes + (heapPressure ? " (heap pressure)" : "");
+	}
+}
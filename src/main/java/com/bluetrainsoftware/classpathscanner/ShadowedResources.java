@@ -0,0 +1,341 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The resources that are on the classpath more than once - the first copy wins and the rest are shadowed by it - and
+ * the packages with files in more than one jar or directory. Duplicates are found by going through the entry tables we
+ * already have with an open addressing table of (resource, entry) pairs, comparing names in place, so no names are
+ * created unless they turn out to be duplicates.
+ *
+ * Copies whose sizes or CRCs differ are conflicts, the rest are just harmless duplicates. Directories don't record a
+ * CRC, so it is worked out for the files that turn out to be duplicates - a copy whose CRC still isn't known (e.g. the
+ * file can't be read) is a conflict, as we can't say it is the same.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+public class ShadowedResources {
+	public static class Copy {
+		/**
+		 * The URL of the directory, jar file or jar offset this copy was found through
+		 */
+		public final URL url;
+		/**
+		 * The full name of the entry, including any jar offset
+		 */
+		public final String entryName;
+		public final long size;
+		/**
+		 * The CRC of the content, or -1 if we don't know it
+		 */
+		public final long crc;
+
+		public Copy(URL url, String entryName, long size, long crc) {
+			this.url = url;
+			this.entryName = entryName;
+			this.size = size;
+			this.crc = crc;
+		}
+
+		/**
+		 * @return true only if both copies are known to have the same content
+		 */
+		boolean sameContent(Copy other) {
+			return size == other.size && crc != -1 && crc == other.crc;
+		}
+
+		@Override
+		public String toString() {
+			return url + "!/" + entryName;
+		}
+	}
+
+	public static class Shadow {
+		/**
+		 * The name of the resource, relative to any jar offset
+		 */
+		public final String name;
+		/**
+		 * Every copy in classpath order, the first is the one that is used
+		 */
+		public final List<Copy> copies = new ArrayList<>();
+
+		public Shadow(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return true if any of the shadowed copies are different from the one that is used
+		 */
+		public boolean isConflicting() {
+			for (int i = 1; i < copies.size(); i++) {
+				if (!copies.get(0).sameContent(copies.get(i))) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + copies;
+		}
+	}
+
+	private final List<Shadow> shadows;
+	private final Map<String, List<URL>> splitPackages;
+
+	private ShadowedResources(List<Shadow> shadows, Map<String, List<URL>> splitPackages) {
+		this.shadows = Collections.unmodifiableList(shadows);
+		this.splitPackages = Collections.unmodifiableMap(splitPackages);
+	}
+
+	/**
+	 * @return every resource found more than once, in the classpath order of their first copy
+	 */
+	public List<Shadow> getShadows() {
+		return shadows;
+	}
+
+	/**
+	 * @return the resources where a shadowed copy differs from the one being used
+	 */
+	public List<Shadow> getConflicts() {
+		List<Shadow> conflicts = new ArrayList<>();
+
+		for (Shadow shadow : shadows) {
+			if (shadow.isConflicting()) {
+				conflicts.add(shadow);
+			}
+		}
+
+		return conflicts;
+	}
+
+	/**
+	 * @return the / separated packages (e.g. com/bluetrainsoftware/) with classes in more than one jar or directory, and where
+	 */
+	public Map<String, List<URL>> getSplitPackages() {
+		return splitPackages;
+	}
+
+	public boolean isEmpty() {
+		return shadows.isEmpty();
+	}
+
+	/**
+	 * Looks for duplicates across the resources, using the entries they already have (reading those that haven't been
+	 * enumerated yet). Directory entries are never duplicates.
+	 *
+	 * @param resources - in classpath order
+	 */
+	public static ShadowedResources find(List<ClasspathResource> resources) {
+		List<Entries> entries = new ArrayList<>();
+		int total = 0;
+
+		try {
+			for (ClasspathResource resource : resources) {
+				Entries found = new Entries(resource, resource.currentEntries());
+				entries.add(found);
+				total += found.table.size();
+			}
+
+			return find(entries, total);
+		} finally {
+			for (Entries found : entries) {
+				found.table.release();
+			}
+		}
+	}
+
+	/**
+	 * The entries of one resource, and where each is on the classpath if the classpath points inside the jar.
+	 */
+	private static class Entries {
+		final EntryTable table;
+		final URL url;
+		/**
+		 * The directory the entries are in, null for a jar.
+		 */
+		final File directory;
+		/**
+		 * The jar offset each entry is beneath, null for those outside of all offsets, null altogether if the whole jar is
+		 * on the classpath. They are found by looking at the names in the table, so none are made.
+		 */
+		final ClasspathResource.OffsetListener[] offsets;
+
+		Entries(ClasspathResource resource, EntryTable table) {
+			this.table = table;
+			this.url = resource.getUrl();
+			this.directory = resource.getClassesSource().isDirectory() ? resource.getClassesSource() : null;
+
+			if (resource.hasNestedJarOffsets()) {
+				offsets = new ClasspathResource.OffsetListener[table.size()];
+
+				for (int i = 0; i < table.size(); i++) {
+					offsets[i] = resource.findOffsetListener(table, i);
+				}
+			} else {
+				offsets = null;
+			}
+		}
+
+		int offsetLength(int index) {
+			return offsets == null ? 0 : offsets[index] == null ? -1 : offsets[index].jarOffsetBytes().length;
+		}
+
+		/**
+		 * @return the name relative to its jar offset
+		 */
+		String relative(String name, int index) {
+			return offsets == null ? name : name.substring(offsets[index].jarOffset.length());
+		}
+
+		URL url(int index) {
+			return offsets == null ? url : offsets[index].interestingResource.url;
+		}
+
+		Copy copy(int index) {
+			String name = table.name(index);
+			long crc = table.crc(index);
+
+			if (crc == -1 && directory != null) {
+				crc = crc(new File(directory, name));
+			}
+
+			return new Copy(url(index), name, table.size(index), crc);
+		}
+
+		/**
+		 * @return the CRC of the file, or -1 if it can't be read
+		 */
+		private static long crc(File file) {
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[8192];
+
+			try (InputStream in = new FileInputStream(file)) {
+				int read;
+
+				while ((read = in.read(buffer)) != -1) {
+					crc.update(buffer, 0, read);
+				}
+
+				return crc.getValue();
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+	}
+
+	private static ShadowedResources find(List<Entries> resources, int total) {
+		int capacity = Integer.highestOneBit(Math.max(total, 1) * 2 - 1) << 1;
+		int mask = capacity - 1;
+
+		// (resource + 1) << 32 | entry, 0 is empty
+		long[] slots = new long[capacity];
+		int[] hashes = new int[capacity];
+		Map<Long, Shadow> shadows = new LinkedHashMap<>();
+		Map<String, List<URL>> packages = new LinkedHashMap<>();
+
+		for (int r = 0; r < resources.size(); r++) {
+			Entries entries = resources.get(r);
+			EntryTable table = entries.table;
+			int lastPrefix = -1;
+
+			for (int i = 0; i < table.size(); i++) {
+				int offset = entries.offsetLength(i);
+
+				if (offset == -1) {
+					continue; // not on the classpath
+				}
+
+				if (table.isDirectory(i)) {
+					continue;
+				}
+
+				// entries in the same directory share their prefix, so we only look at each package once per jar
+				int prefix = table.prefixOffset(i);
+
+				if (prefix != -1 && prefix != lastPrefix) {
+					lastPrefix = prefix;
+
+					addPackage(packages, entries.relative(table.prefix(i), i), entries.url(i));
+				}
+
+				int hash = table.nameHash(i, offset);
+				int slot = hash & mask;
+				long first = 0;
+
+				while (slots[slot] != 0) {
+					if (hashes[slot] == hash) {
+						Entries firstEntries = resources.get((int) (slots[slot] >>> 32) - 1);
+						int firstEntry = (int) slots[slot];
+
+						if (table.sameName(i, offset, firstEntries.table, firstEntry, firstEntries.offsetLength(firstEntry))) {
+							first = slots[slot];
+							break;
+						}
+					}
+
+					slot = (slot + 1) & mask;
+				}
+
+				if (first == 0) {
+					slots[slot] = ((long) (r + 1) << 32) | i;
+					hashes[slot] = hash;
+				} else {
+					Shadow shadow = shadows.get(first);
+
+					if (shadow == null) {
+						Entries firstEntries = resources.get((int) (first >>> 32) - 1);
+						int firstEntry = (int) first;
+
+						shadow = new Shadow(firstEntries.relative(firstEntries.table.name(firstEntry), firstEntry));
+						shadow.copies.add(firstEntries.copy(firstEntry));
+						shadows.put(first, shadow);
+					}
+
+					shadow.copies.add(entries.copy(i));
+				}
+			}
+		}
+
+		Map<String, List<URL>> splitPackages = new LinkedHashMap<>();
+
+		for (Map.Entry<String, List<URL>> pkg : packages.entrySet()) {
+			if (pkg.getValue().size() > 1) {
+				splitPackages.put(pkg.getKey(), Collections.unmodifiableList(pkg.getValue()));
+			}
+		}
+
+		return new ShadowedResources(new ArrayList<>(shadows.values()), splitPackages);
+	}
+
+	private static void addPackage(Map<String, List<URL>> packages, String pkg, URL url) {
+		if (pkg.length() == 0 || pkg.startsWith("META-INF/")) {
+			return;
+		}
+
+		List<URL> where = packages.get(pkg);
+
+		if (where == null) {
+			where = new ArrayList<>();
+			packages.put(pkg, where);
+		}
+
+		if (!where.contains(url)) {
+			where.add(url);
+		}
+	}
+}
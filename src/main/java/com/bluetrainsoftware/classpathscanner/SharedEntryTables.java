@@ -0,0 +1,111 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A process wide registry of the entries of the jars we have been through, so when many classloaders share the same
+ * jars (e.g. webapps in a container) each jar is only enumerated once. A jar is identified by its canonical path, its
+ * length and modification time and (where the file system has one) its file key, e.g. the inode.
+ *
+ * The registry holds one reference to each table, every resource using it holds another. Tables nobody else is using
+ * are dropped when classloaders are released.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class SharedEntryTables {
+	private static final Logger log = LoggerFactory.getLogger(SharedEntryTables.class);
+	private static final Map<Key, EntryTable> tables = new HashMap<>();
+
+	static class Key {
+		final String path;
+		final long length;
+		final long lastModified;
+		final Object fileKey;
+
+		Key(String path, long length, long lastModified, Object fileKey) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+		}
+
+		static Key of(File file) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+				return new Key(file.getCanonicalPath(), attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+			} catch (IOException e) {
+				log.debug("Unable to identify {}, it will not be shared", file.getAbsolutePath(), e);
+
+				return null;
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			Key key = (Key) o;
+
+			return length == key.length && lastModified == key.lastModified && path.equals(key.path)
+				&& (fileKey == null ? key.fileKey == null : fileKey.equals(key.fileKey));
+		}
+
+		@Override
+		public int hashCode() {
+			int result = path.hashCode();
+			result = 31 * result + (int) (length ^ (length >>> 32));
+			result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+			return result;
+		}
+	}
+
+	/**
+	 * @return the entries of this jar (with a reference held for the caller), or null if no-one has enumerated it yet
+	 */
+	static synchronized EntryTable acquire(File jar) {
+		Key key = Key.of(jar);
+		EntryTable table = key == null ? null : tables.get(key);
+
+		return table == null ? null : table.retain();
+	}
+
+	/**
+	 * Makes the entries of this jar available to everyone else.
+	 */
+	static synchronized void share(File jar, EntryTable table) {
+		Key key = Key.of(jar);
+
+		if (key != null && !tables.containsKey(key)) {
+			tables.put(key, table.retain());
+		}
+	}
+
+	/**
+	 * Drops any table that only the registry is still holding.
+	 */
+	static synchronized void purge() {
+		for (Iterator<EntryTable> it = tables.values().iterator(); it.hasNext(); ) {
+			EntryTable table = it.next();
+
+			if (table.references() <= 1) {
+				table.release();
+				it.remove();
+			}
+		}
+	}
+
+	static synchronized int size() {
+		return tables.size();
+	}
+}
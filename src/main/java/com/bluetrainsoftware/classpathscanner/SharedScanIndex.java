@@ -0,0 +1,206 @@
+package com.bluetrainsoftware.classpathscanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Keeps the entry tables of jars in a directory shared by every JVM on the host, so when many JVMs start from the same
+ * image only the first one enumerates each jar - the rest map its table read only and never open the jar unless a
+ * listener wants something from it.
+ *
+ * Each jar has its own index file, named after its path and holding its identity (its path, length, modification time
+ * and a checksum of its central directory - not the file key, which differs between containers sharing an image), its
+ * names, records and name lookup. A file that doesn't match the jar as it is now is ignored and rewritten, and only the
+ * header is read to find that out. Files are written by one JVM at a time (the others just carry on
+ * enumerating for themselves) to a temporary file that is then renamed into place, so a reader only ever sees a whole
+ * file, and they are never changed once in place, so a JVM can keep using a table it mapped after it is replaced.
+ *
+ * @author: Richard Vowles - https://plus.google.com/+RichardVowles
+ */
+class SharedScanIndex {
+	private static final Logger log = LoggerFactory.getLogger(SharedScanIndex.class);
+	private static final int MAGIC = 0x43505349; // CPSI
+	private static final int FORMAT = 2;
+
+	private final File directory;
+
+	SharedScanIndex(File directory) {
+		this.directory = directory;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the entries of this jar written by any JVM (including this one), or null if there are none or the jar has
+	 * changed since
+	 */
+	EntryTable load(File jar) {
+		SharedEntryTables.Key key = SharedEntryTables.Key.of(jar);
+
+		if (key == null) {
+			return null;
+		}
+
+		File indexFile = indexFile(key);
+
+		if (!indexFile.isFile()) {
+			return null;
+		}
+
+		try {
+			byte[] identity = identity(jar, key);
+			ByteBuffer body = identity == null ? null : map(indexFile, identity);
+
+			return body == null ? null : EntryTable.over(body);
+		} catch (IOException | IllegalArgumentException e) {
+			log.debug("Unable to use the shared index {} for {}", indexFile, jar, e);
+
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the entries of this jar for everyone else, unless another JVM is already writing them.
+	 *
+	 * @param table - the complete entries of the jar
+	 */
+	void store(File jar, EntryTable table) {
+		SharedEntryTables.Key key = SharedEntryTables.Key.of(jar);
+
+		if (key == null || (!directory.isDirectory() && !directory.mkdirs())) {
+			return;
+		}
+
+		File indexFile = indexFile(key);
+		File lockFile = new File(directory, indexFile.getName() + ".lock");
+
+		try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = lockChannel.tryLock();
+
+			if (lock == null) {
+				return; // someone else is writing it
+			}
+
+			try {
+				byte[] identity = identity(jar, key);
+
+				if (identity == null || (indexFile.isFile() && bodyOffset(indexFile, identity) != -1)) {
+					return; // not a jar we can identify, or written while we were going through the jar
+				}
+
+				write(indexFile, identity, table);
+			} finally {
+				lock.release();
+			}
+		} catch (IOException | OverlappingFileLockException e) {
+			log.debug("Unable to write the shared index {} for {}", indexFile, jar, e);
+		}
+	}
+
+	private void write(File indexFile, byte[] identity, EntryTable table) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(4 + 4 + 4 + identity.length + table.writtenSize());
+
+		out.putInt(MAGIC);
+		out.putInt(FORMAT);
+		out.putInt(identity.length);
+		out.put(identity);
+		table.writeTo(out);
+		out.flip();
+
+		File temp = File.createTempFile(indexFile.getName(), ".tmp", directory);
+
+		try {
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+
+				channel.force(true);
+			}
+
+			Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (temp.exists() && !temp.delete()) {
+				temp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Maps the table part of the index file read only - the mapping outlives the file being closed (or replaced).
+	 *
+	 * @return the table part of the file, or null if it isn't for this version of the jar
+	 */
+	private ByteBuffer map(File indexFile, byte[] identity) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+			long offset = bodyOffset(raf, identity);
+
+			return offset == -1 ? null : raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, raf.length() - offset);
+		}
+	}
+
+	private static long bodyOffset(File indexFile, byte[] identity) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+			return bodyOffset(raf, identity);
+		}
+	}
+
+	/**
+	 * Reads just the header, so a file for another version of the jar is never mapped.
+	 *
+	 * @return where the table starts, or -1 if the file isn't for this version of the jar
+	 */
+	private static long bodyOffset(RandomAccessFile raf, byte[] identity) throws IOException {
+		if (raf.length() < 12 + identity.length || raf.readInt() != MAGIC || raf.readInt() != FORMAT || raf.readInt() != identity.length) {
+			return -1;
+		}
+
+		byte[] written = new byte[identity.length];
+		raf.readFully(written);
+
+		return Arrays.equals(written, identity) ? raf.getFilePointer() : -1;
+	}
+
+	/**
+	 * @return what the jar is now, or null if it isn't a zip file we can read
+	 */
+	private static byte[] identity(File jar, SharedEntryTables.Key key) throws IOException {
+		long checksum = CentralDirectory.checksum(jar);
+
+		return checksum == -1 ? null : (key.path + "\n" + key.length + "\n" + key.lastModified + "\n" + checksum).getBytes(EntryTable.UTF8);
+	}
+
+	/**
+	 * @return the index file for this jar, e.g. spring-core-4.0.0.jar-0123456789abcdef.idx
+	 */
+	private File indexFile(SharedEntryTables.Key key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.path.getBytes(EntryTable.UTF8));
+			StringBuilder name = new StringBuilder(new File(key.path).getName()).append('-');
+
+			for (int i = 0; i < 8; i++) {
+				name.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+			}
+
+			return new File(directory, name.append(".idx").toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is always available", e);
+		}
+	}
+}
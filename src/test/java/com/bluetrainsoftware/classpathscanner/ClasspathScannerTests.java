@@ -7,17 +7,31 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
 
 import static junit.framework.Assert.assertNotNull;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -161,6 +175,12 @@ public class ClasspathScannerTests {
 		}
 
 		assertEquals("Should have found six classes", 6, allScanResources.size());
+
+		for(ClasspathResource resource : cpResources.classpaths) {
+			assertNotNull(resource.getEntryTable());
+			assertTrue(resource.getEntryTable().find("WEB-INF/classes/com/bluetrainsoftware/classpathscanner/SimpleJarClass.class") != -1 ||
+				resource.getEntryTable().find("com/bluetrainsoftware/classpathscanner/SimpleJarClass.class") != -1);
+		}
 		assertEquals("Should always keep a track of one listener for new classpaths", 1, ClasspathScanner.allUncheckedListeners.size());
 		Assert.assertEquals("This classpath should have no listeners", 0, ClasspathScanner.resources.get(loader).uncheckedListeners.size());
 		assertEquals("Should have two scan actions", 2, scanChecker.size());
@@ -168,6 +188,1707 @@ public class ClasspathScannerTests {
 		assertEquals("Should have 1 complete action1", 1, scanChecker.get(ResourceScanListener.ScanAction.COMPLETE).intValue());
 	}
 
+	@Test
+	public void entryTableSharesPrefixes() {
+		for(EntryStorage storage : EntryStorage.values()) {
+			entryTableSharesPrefixes(new EntryTable(storage));
+		}
+
+		// growing (and looking up) a mapped table is all cut from one mapped chunk, given back with the table
+		int chunks = EntryStorage.MappedChunks.chunks();
+		EntryTable table = new EntryTable(EntryStorage.MAPPED);
+
+		for (int i = 0; i < 5000; i++) {
+			table.add("com/example/package" + (i % 50) + "/Class" + i + ".class", i, i, 0);
+		}
+
+		table.complete();
+		assertEquals(4321, table.find("com/example/package21/Class4321.class"));
+		assertEquals(chunks + 1, EntryStorage.MappedChunks.chunks());
+
+		table.release();
+		assertEquals(chunks, EntryStorage.MappedChunks.chunks());
+	}
+
+	private void entryTableSharesPrefixes(EntryTable table) {
+		table.add("org/springframework/context/", -1, -1, 0);
+		table.add("org/springframework/context/ApplicationContext.class", 100, 1234, 0);
+		table.add("org/springframework/context/ApplicationEvent.class", 200, 5678, 0);
+		table.add("README", 10, 1, 0);
+		table.complete();
+
+		assertEquals(4, table.size());
+		assertEquals("org/springframework/context/ApplicationEvent.class", table.name(2));
+		assertEquals("org/springframework/context/", table.prefix(1));
+		assertEquals("org/springframework/context/", table.prefix(0));
+		assertEquals("org/springframework/context/", table.name(0));
+		assertTrue(table.isDirectory(0));
+		assertEquals(200, table.size(2));
+		assertEquals(1234, table.crc(1));
+		assertEquals(1, table.find("org/springframework/context/ApplicationContext.class"));
+		assertEquals(3, table.find("README"));
+		assertEquals(-1, table.find("org/springframework/context/Missing.class"));
+		assertTrue("prefix should only be stored once", table.nameBytesUsed() <
+			"org/springframework/context/ApplicationContext.class".length() + "org/springframework/context/ApplicationEvent.class".length());
+
+		table.release();
+		assertEquals(0, table.size());
+		assertEquals(-1, table.find("README"));
+	}
+
+	@Test
+	public void packageFilterEntriesAreEnumerated() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("filtered/one.txt", "one");
+		entries.put("filtered/two.txt", "two");
+
+		final File jarFile = createJar(File.createTempFile("filtered", ".jar"), entries);
+		final long lastModified = jarFile.lastModified();
+		final List<String> offered = new ArrayList<>();
+
+		ClasspathScanner cp = new ClasspathScanner();
+
+		cp.registerResourceScanner(new PackageInterestListener() {
+			@Override
+			public Collection<String> getInterestingPackages() {
+				// the filter has been built, so spoil the jar - without it looking any different - to show it isn't read again
+				try {
+					Files.write(jarFile.toPath(), new byte[(int) jarFile.length()]);
+					assertTrue(jarFile.setLastModified(lastModified));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+
+				return Arrays.asList("filtered");
+			}
+
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				for (ScanResource scanResource : scanResources) {
+					offered.add(scanResource.resourceName);
+				}
+
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.ONCE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		cp.scan(new URLClassLoader(new URL[] {jarFile.toURI().toURL()}));
+
+		assertEquals(Arrays.asList("filtered/one.txt", "filtered/two.txt"), offered);
+	}
+
+	@Test
+	public void changesOnlyDelivery() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("changes", ".jar");
+		createBangJar(jarFile, new String[] {""}, new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		final List<String> offered = new ArrayList<>();
+		final List<String> removed = new ArrayList<>();
+
+		ClasspathScanner cp = new ClasspathScanner();
+
+		cp.registerResourceScanner(new ResourceChangeListener() {
+			@Override
+			public void removed(List<ScanResource> scanResources) {
+				for(ScanResource r : scanResources) {
+					removed.add(r.resourceName);
+				}
+			}
+
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				for(ScanResource r : scanResources) {
+					offered.add(r.resourceName);
+				}
+
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.CHANGES;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()});
+
+		cp.scan(loader);
+		assertEquals(2, offered.size());
+		ClasspathSnapshot before = cp.snapshot(loader);
+
+		offered.clear();
+		cp.scan(loader);
+		assertEquals("unchanged jar should be skipped", 0, offered.size());
+
+		createBangJar(jarFile, new String[] {""}, new Class[] {SimpleJarClass.class, ClasspathScannerTests.class});
+
+		// its package filter is made from the new jar before the scan, which mustn't lose what we had last time
+		packageListener(cp, "com.bluetrainsoftware");
+
+		cp.scan(loader);
+		assertEquals(1, offered.size());
+		assertTrue(offered.get(0).endsWith("ClasspathScannerTests.class"));
+		assertEquals(1, removed.size());
+		assertTrue(removed.get(0).endsWith("SimpleJarBangClass.class"));
+
+		ClasspathSnapshot after = cp.snapshot(loader);
+		ClasspathDiff diff = ClasspathScanner.diff(before, after);
+
+		assertEquals(1, diff.getChanges().size());
+		assertEquals(1, diff.getChanges().get(0).added.size());
+		assertEquals(1, diff.getChanges().get(0).removed.size());
+		assertEquals(0, diff.getChanges().get(0).changed.size());
+		assertTrue(ClasspathScanner.diff(after, after).isEmpty());
+
+		before.release();
+		after.release();
+	}
+
+	@Test
+	public void parallelJarScan() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("parallel", ".war");
+
+		URL[] bangUrls = createBangJar(jarFile, new String[] {WEB_INF_CLASSES, WEB_INF_MYCLASSES},
+			new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setParallelism(4);
+		cp.setParallelEntryThreshold(1);
+		cp.setReadAhead(4, 1024 * 1024);
+
+		final List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> second = Collections.synchronizedList(new ArrayList<String>());
+
+		for(final List<String> found : Arrays.asList(first, second)) {
+			cp.registerResourceScanner(new ResourceScanListener() {
+				@Override
+				public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+					for(ScanResource r : scanResources) {
+						found.add(r.offsetUrl.toString() + ":" + r.resourceName);
+					}
+
+					return scanResources;
+				}
+
+				@Override
+				public void deliver(ScanResource desire, InputStream inputStream) {
+					try {
+						assertTrue(IOUtils.toByteArray(inputStream).length > 0);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				@Override
+				public InterestAction isInteresting(InterestingResource interestingResource) {
+					return InterestAction.ONCE;
+				}
+
+				@Override
+				public void scanAction(ScanAction action) {
+				}
+			});
+		}
+
+		cp.scan(new URLClassLoader(bangUrls));
+
+		assertEquals(4, first.size());
+		assertEquals(first, second);
+
+		for(String found : first) {
+			assertTrue(found, found.contains("!/WEB-INF/") && found.contains(":com/bluetrainsoftware/"));
+		}
+	}
+
+	@Test
+	public void parallelEnumerationMatchesTheJar() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			entries.put("slices/dir" + (i % 3) + "/entry" + i + ".txt", "entry " + i);
+		}
+
+		File jarFile = createJar(File.createTempFile("slices", ".jar"), entries);
+
+		JarEntryReader directory = new JarEntryReader(jarFile, null);
+		assertEquals("we read the directory ourselves", 20, directory.entryCount());
+		directory.close();
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setParallelism(4);
+		cp.setParallelEntryThreshold(1);
+		cp.setBatchSizes(3, 3); // so the directory is made in several slices
+
+		final List<String> offered = Collections.synchronizedList(new ArrayList<String>());
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				for (ScanResource r : scanResources) {
+					offered.add(r.resourceName);
+				}
+
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.ONCE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()});
+		cp.scan(loader);
+
+		assertEquals(new ArrayList<>(entries.keySet()), offered);
+
+		EntryTable table = ClasspathScanner.resources.get(loader).classpaths.get(0).getEntryTable();
+
+		try (JarFile jf = new JarFile(jarFile)) {
+			List<JarEntry> jarEntries = Collections.list(jf.entries());
+			assertEquals(jarEntries.size(), table.size());
+
+			for (int i = 0; i < jarEntries.size(); i++) {
+				JarEntry entry = jarEntries.get(i);
+
+				assertEquals(entry.getName(), table.name(i));
+				assertEquals(entry.getSize(), table.size(i));
+				assertEquals(entry.getCrc(), table.crc(i));
+				assertEquals(entry.getTime(), table.time(i));
+			}
+		}
+	}
+
+	@Test
+	public void readAheadBudgets() throws Exception {
+		final Map<String, String> entries = new LinkedHashMap<>();
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			big.append("big line ").append(i % 10);
+		}
+
+		for (int i = 0; i < 10; i++) {
+			entries.put("ahead/" + i + ".txt", i % 2 == 0 ? "small " + i : i + big.toString());
+		}
+
+		File jarFile = createJar(File.createTempFile("ahead", ".jar"), entries);
+
+		// smaller than any entry, then smaller than the big entries only
+		for (long budget : new long[] {1, 100}) {
+			ClasspathScanner.resetScannerForTesting();
+
+			ClasspathScanner cp = new ClasspathScanner();
+			cp.setReadAhead(4, budget);
+
+			final Map<String, String> delivered = new LinkedHashMap<>();
+
+			cp.registerResourceScanner(new ResourceScanListener() {
+				@Override
+				public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+					return scanResources;
+				}
+
+				@Override
+				public void deliver(ScanResource desire, InputStream inputStream) {
+					try {
+						delivered.put(desire.resourceName, new String(IOUtils.toByteArray(inputStream), "UTF-8"));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				@Override
+				public InterestAction isInteresting(InterestingResource interestingResource) {
+					return InterestAction.ONCE;
+				}
+
+				@Override
+				public void scanAction(ScanAction action) {
+				}
+			});
+
+			cp.scan(new URLClassLoader(new URL[] {jarFile.toURI().toURL()}));
+
+			assertEquals("budget " + budget, entries, delivered);
+			assertEquals("budget " + budget, new ArrayList<>(entries.keySet()), new ArrayList<>(delivered.keySet()));
+		}
+
+		// only what fits in the budget is read in the background, the rest is read when its turn comes
+		final Map<String, String> openedBy = new HashMap<>();
+		ReadAhead.Source source = new ReadAhead.Source() {
+			@Override
+			public InputStream open(ResourceScanListener.ScanResource resource) throws IOException {
+				synchronized (openedBy) {
+					openedBy.put(resource.resourceName, Thread.currentThread().getName());
+				}
+
+				return IOUtils.toInputStream(entries.get(resource.resourceName), "UTF-8");
+			}
+
+			@Override
+			public long size(ResourceScanListener.ScanResource resource) {
+				return entries.get(resource.resourceName).length();
+			}
+		};
+
+		List<ResourceScanListener.ScanResource> desired = new ArrayList<>();
+		for (String name : entries.keySet()) {
+			desired.add(new ResourceScanListener.ScanResource(jarFile.toURI().toURL(), new JarEntry(name), name, jarFile.toURI().toURL()));
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			for (long budget : new long[] {1, 100}) {
+				openedBy.clear();
+				ReadAhead readAhead = new ReadAhead(desired, source, executor, 4, budget);
+
+				for (int i = 0; i < desired.size(); i++) {
+					assertEquals(entries.get(desired.get(i).resourceName), IOUtils.toString(readAhead.open(i), "UTF-8"));
+				}
+
+				readAhead.close();
+
+				String caller = Thread.currentThread().getName();
+				for (int i = 1; i < desired.size(); i++) {
+					String name = desired.get(i).resourceName;
+					boolean fits = entries.get(name).length() <= budget;
+
+					assertEquals(name + " with budget " + budget, fits, !caller.equals(openedBy.get(name)));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void jarEntryReaderPoolsInflaters() throws IOException {
+		Random random = new Random(32);
+		byte[] stored = new byte[20000];
+		random.nextBytes(stored);
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append("line ").append(random.nextInt(1000)).append('\n');
+		}
+		byte[] deflated = text.toString().getBytes("UTF-8");
+
+		File jarFile = File.createTempFile("reader", ".jar");
+		try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(jarFile))) {
+			CRC32 crc = new CRC32();
+			crc.update(stored);
+
+			JarEntry entry = new JarEntry("stored.bin");
+			entry.setMethod(JarEntry.STORED);
+			entry.setSize(stored.length);
+			entry.setCompressedSize(stored.length);
+			entry.setCrc(crc.getValue());
+			jar.putNextEntry(entry);
+			jar.write(stored);
+
+			// sizes not known up front, so its sizes and crc follow the data in a data descriptor
+			jar.putNextEntry(new JarEntry("deflated.txt"));
+			jar.write(deflated);
+		}
+
+		try (JarFile jar = new JarFile(jarFile)) {
+			assertEquals(JarEntry.DEFLATED, jar.getJarEntry("deflated.txt").getMethod());
+		}
+
+		byte[] bytes = Files.readAllBytes(jarFile.toPath());
+		int local = 0;
+		while (CentralDirectory.readInt(bytes, local) != 0x04034b50 || !new String(bytes, local + 30, 12, "UTF-8").equals("deflated.txt")) {
+			local++;
+		}
+		assertEquals("has a data descriptor", 8, CentralDirectory.readShort(bytes, local + 6) & 8);
+
+		InflaterPool pool = new InflaterPool(2);
+		JarEntryReader reader = new JarEntryReader(jarFile, pool);
+
+		try {
+			assertArrayEquals(stored, IOUtils.toByteArray(reader.open("stored.bin")));
+			assertEquals("stored entries don't need an inflater", 0, pool.pooled());
+
+			InputStream stream = reader.open("deflated.txt");
+			assertArrayEquals(deflated, IOUtils.toByteArray(stream));
+			stream.close();
+			assertEquals("given back when closed", 1, pool.pooled());
+
+			stream = reader.open("deflated.txt");
+			assertEquals(0, pool.pooled());
+			byte[] start = new byte[100];
+			assertEquals(100, IOUtils.read(stream, start));
+			assertArrayEquals(Arrays.copyOf(deflated, 100), start);
+			stream.close();
+			stream.close();
+			assertEquals("given back (once) after a partial read", 1, pool.pooled());
+
+			List<InputStream> open = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				open.add(reader.open("deflated.txt"));
+			}
+			for (InputStream opened : open) {
+				opened.close();
+			}
+			assertEquals("only as many as the pool holds are kept", 2, pool.pooled());
+
+			assertNull(reader.open("missing.txt"));
+
+			// found by where it is in the jar, or by name if it isn't there
+			assertArrayEquals(stored, IOUtils.toByteArray(reader.open(0, "stored.bin")));
+			assertArrayEquals(stored, IOUtils.toByteArray(reader.open(1, "stored.bin")));
+			assertArrayEquals(stored, IOUtils.toByteArray(reader.open(7, "stored.bin")));
+			assertNull(reader.open(0, "missing.txt"));
+		} finally {
+			reader.close();
+			pool.release();
+		}
+
+		assertEquals(0, pool.pooled());
+	}
+
+	@Test
+	public void sharedEntryTables() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("shared", ".jar");
+		URL[] urls = createBangJar(jarFile, new String[] {""}, new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setShareEntryTables(true);
+
+		final MutableInteger delivered = new MutableInteger();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				return scanResources;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+				try {
+					byte[] expected = IOUtils.toByteArray(getClass().getResourceAsStream("/" + desire.resourceName));
+					assertTrue(Arrays.equals(expected, IOUtils.toByteArray(inputStream)));
+					delivered.count++;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.REPEAT;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		URLClassLoader first = new URLClassLoader(urls);
+		URLClassLoader second = new URLClassLoader(urls);
+
+		ClasspathResource firstResource = cp.scan(first).get(0);
+		ClasspathResource secondResource = cp.scan(second).get(0);
+
+		assertEquals(4, delivered.count);
+		assertTrue("second classloader should share the first's entries", firstResource.getEntryTable() == secondResource.getEntryTable());
+
+		ClasspathScanner.release(first);
+		assertEquals(2, secondResource.getEntryTable().size());
+		ClasspathScanner.release(second);
+		assertEquals(0, SharedEntryTables.size());
+	}
+
+	@Test
+	public void packageInterestPruning() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("packages", ".war");
+		URL[] bangUrls = createBangJar(jarFile, new String[] {WEB_INF_CLASSES, WEB_INF_MYCLASSES},
+			new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+
+		final MutableInteger wanted = packageListener(cp, "com.bluetrainsoftware");
+		final MutableInteger unwanted = packageListener(cp, "org/acme");
+
+		List<ClasspathResource> resources = cp.scan(new URLClassLoader(bangUrls));
+
+		assertEquals("asked about both offsets, given both classes in each", 204, wanted.count);
+		assertEquals("should never have been asked", 0, unwanted.count);
+
+		for(ClasspathResource.OffsetListener offsetListener : resources.get(0).getJarOffsets()) {
+			assertTrue(offsetListener.interestingResource.mightContainPackage("com/bluetrainsoftware/classpathscanner"));
+			assertNotNull(offsetListener.interestingResource.getPackageFilter());
+		}
+	}
+
+	private MutableInteger packageListener(ClasspathScanner cp, final String packageName) {
+		final MutableInteger counter = new MutableInteger();
+
+		cp.registerResourceScanner(new PackageInterestListener() {
+			@Override
+			public Collection<String> getInterestingPackages() {
+				return Arrays.asList(packageName);
+			}
+
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				counter.count += scanResources.size();
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				counter.count += 100;
+				return InterestAction.ONCE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		return counter;
+	}
+
+	@Test
+	public void backgroundScan() throws Exception {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("background", ".war");
+		URL[] bangUrls = createBangJar(jarFile, new String[] {WEB_INF_CLASSES, WEB_INF_MYCLASSES},
+			new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+		URLClassLoader loader = new URLClassLoader(bangUrls);
+
+		final MutableInteger first = packageListener(cp, "");
+		Future<Void> firstComplete = cp.whenComplete(lastRegisteredListener());
+
+		Future<List<ClasspathResource>> scanning = cp.scanInBackground(loader);
+
+		firstComplete.get(30, TimeUnit.SECONDS);
+		assertEquals(204, first.count);
+		assertEquals(1, scanning.get(30, TimeUnit.SECONDS).size());
+
+		// registered after the scan, caught up by the next one without telling the first listener again
+		final MutableInteger late = packageListener(cp, "");
+		Future<Void> lateComplete = cp.whenComplete(lastRegisteredListener());
+
+		cp.scanInBackground(loader);
+
+		lateComplete.get(30, TimeUnit.SECONDS);
+		assertEquals(204, late.count);
+		assertEquals(204, first.count);
+	}
+
+	@Test
+	public void concurrentClassLoaderScans() throws Exception {
+		ClasspathScanner.resetScannerForTesting();
+
+		File firstJar = File.createTempFile("first-loader", ".jar");
+		File secondJar = File.createTempFile("second-loader", ".jar");
+		createBangJar(firstJar, new String[] {""}, new Class[] {SimpleJarBangClass.class});
+		createBangJar(secondJar, new String[] {""}, new Class[] {SimpleJarClass.class});
+
+		final URLClassLoader firstLoader = new URLClassLoader(new URL[] {firstJar.toURI().toURL()});
+		URLClassLoader secondLoader = new URLClassLoader(new URL[] {secondJar.toURI().toURL()});
+
+		final ClasspathScanner cp = new ClasspathScanner();
+		final CountDownLatch firstWaiting = new CountDownLatch(1);
+		final CountDownLatch secondDelivered = new CountDownLatch(1);
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+
+		// the scan of the first classloader can't finish until the second has been scanned
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				for (ScanResource r : scanResources) {
+					if (r.resourceName.endsWith("SimpleJarBangClass.class")) {
+						firstWaiting.countDown();
+						seen.add("first waited " + secondDelivered.await(30, TimeUnit.SECONDS));
+					} else {
+						seen.add("second");
+						secondDelivered.countDown();
+					}
+				}
+
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.REPEAT;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			Future<List<ClasspathResource>> first = executor.submit(new Callable<List<ClasspathResource>>() {
+				@Override
+				public List<ClasspathResource> call() throws Exception {
+					return cp.scan(firstLoader);
+				}
+			});
+
+			assertTrue(firstWaiting.await(30, TimeUnit.SECONDS));
+			cp.scan(secondLoader);
+			first.get(30, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(Arrays.asList("second", "first waited true"), seen);
+	}
+
+	@Test
+	public void prescannedTablesAreDropped() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+		ClasspathScanner.prescanSystemClasspath();
+
+		File used = null;
+		File unused = null;
+		for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if (new File(path).isFile()) {
+				if (used == null) {
+					used = new File(path);
+				} else if (unused == null && !new File(path).getAbsoluteFile().equals(used.getAbsoluteFile())) {
+					unused = new File(path);
+				}
+			}
+		}
+
+		assertNotNull(unused);
+		assertTrue(ClasspathScanner.isPrescanned(used));
+
+		ClasspathScanner cp = new ClasspathScanner();
+		packageListener(cp, "");
+		URLClassLoader loader = new URLClassLoader(new URL[] {used.toURI().toURL()});
+		cp.scan(loader);
+
+		assertFalse("its classloader has been scanned", ClasspathScanner.isPrescanned(used));
+		assertTrue(ClasspathScanner.isPrescanned(unused));
+
+		ClasspathScanner.releaseAllResources();
+		assertFalse(ClasspathScanner.isPrescanned(unused));
+	}
+
+	@Test
+	public void listenerIsolation() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("isolation", ".war");
+		URL[] bangUrls = createBangJar(jarFile, new String[] {WEB_INF_CLASSES, WEB_INF_MYCLASSES},
+			new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setListenerDeadlines(200, 0);
+		cp.setDisableFailingListeners(true);
+
+		final MutableInteger failing = misbehavingListener(cp, 0);
+		final MutableInteger slow = misbehavingListener(cp, 5000);
+		final MutableInteger good = packageListener(cp, "");
+		final MutableInteger uninterested = new MutableInteger();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				uninterested.count += 100;
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				uninterested.count++;
+				throw new RuntimeException("can't decide");
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+				if (action == ScanAction.COMPLETE) {
+					uninterested.count += 1000;
+				}
+			}
+		});
+
+		long start = System.currentTimeMillis();
+		cp.scan(new URLClassLoader(bangUrls));
+
+		assertTrue("the slow listener should have been cut off", System.currentTimeMillis() - start < 4000);
+		assertEquals("well behaved listener gets everything", 204, good.count);
+		assertEquals("failing listener only gets its first batch", 1, failing.count);
+		assertEquals("slow listener only gets its first batch", 1, slow.count);
+		assertEquals("failing to decide is only asked once, and told nothing after", 1, uninterested.count);
+
+		// a change listener cut off part way through has missed things, so it is given everything next time
+		ClasspathScanner.resetScannerForTesting();
+		File plainJar = File.createTempFile("isolation", ".jar");
+		createBangJar(plainJar, new String[] {""}, new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		cp = new ClasspathScanner();
+		cp.setDisableFailingListeners(true);
+
+		final List<Integer> offered = new ArrayList<>();
+
+		cp.registerResourceScanner(new ResourceChangeListener() {
+			@Override
+			public void removed(List<ScanResource> scanResources) {
+			}
+
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				offered.add(scanResources.size());
+
+				if (offered.size() == 1) {
+					throw new RuntimeException("not this time");
+				}
+
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.CHANGES;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {plainJar.toURI().toURL()});
+		cp.scan(loader);
+		cp.scan(loader);
+		cp.scan(loader);
+
+		assertEquals(Arrays.asList(2, 2), offered);
+	}
+
+	@Test
+	public void timedOutListenerLeavesJarReadable() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		byte[] big = new byte[4 * 1024 * 1024];
+		new Random(1).nextBytes(big);
+
+		File jarFile = File.createTempFile("interrupted", ".jar");
+
+		try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jarFile))) {
+			CRC32 crc = new CRC32();
+			crc.update(big);
+
+			JarEntry entry = new JarEntry("big.bin");
+			entry.setMethod(JarEntry.STORED);
+			entry.setSize(big.length);
+			entry.setCrc(crc.getValue());
+			jarOutputStream.putNextEntry(entry);
+			jarOutputStream.write(big);
+
+			for (int i = 0; i < 5; i++) {
+				jarOutputStream.putNextEntry(new JarEntry("small" + i + ".txt"));
+				jarOutputStream.write(("small " + i).getBytes("UTF-8"));
+			}
+		}
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setListenerDeadlines(500, 0);
+		cp.setBatchSizes(1, 1);
+		cp.setJarHandleCache(4, 0);
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				return scanResources;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+				try { // a byte at a time, so it is almost certainly reading the jar when its time runs out
+					while (!Thread.currentThread().isInterrupted() && inputStream.read() != -1) {
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.REPEAT;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		final Map<String, byte[]> delivered = new HashMap<>();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				return scanResources;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+				try {
+					delivered.put(desire.resourceName, IOUtils.toByteArray(inputStream));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.REPEAT;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()});
+
+		for (int scan = 0; scan < 2; scan++) { // the second scan reads through the kept open jar
+			delivered.clear();
+			cp.scan(loader);
+
+			assertEquals(6, delivered.size());
+			assertTrue(Arrays.equals(big, delivered.get("big.bin")));
+
+			for (int i = 0; i < 5; i++) {
+				assertEquals("small " + i, new String(delivered.get("small" + i + ".txt"), "UTF-8"));
+			}
+		}
+	}
+
+	@Test
+	public void abandonedListenerGetsNothingMore() throws Exception {
+		ClasspathScanner.resetScannerForTesting();
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		for (int i = 0; i < 8; i++) {
+			entries.put("slow" + i + ".txt", "slow " + i);
+		}
+
+		File jarFile = createJar(File.createTempFile("abandoned", ".jar"), entries);
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setListenerDeadlines(250, 0);
+		cp.setBatchSizes(8, 8);
+
+		final AtomicInteger delivered = new AtomicInteger();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				return scanResources;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+				delivered.incrementAndGet();
+
+				long until = System.currentTimeMillis() + 100;
+
+				while (System.currentTimeMillis() < until) { // and takes no notice of being interrupted
+					try {
+						Thread.sleep(until - System.currentTimeMillis());
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.REPEAT;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		cp.scan(new URLClassLoader(new URL[] {jarFile.toURI().toURL()}));
+
+		int atDeadline = delivered.get();
+		Thread.sleep(1000); // long enough for the abandoned batch to have worked through the rest
+
+		assertTrue("delivered " + atDeadline + " before its time ran out", atDeadline > 0 && atDeadline < 8);
+		assertTrue("at most the delivery under way when it ran out", delivered.get() <= atDeadline + 1);
+	}
+
+	private MutableInteger misbehavingListener(ClasspathScanner cp, final long sleepMillis) {
+		final MutableInteger batches = new MutableInteger();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				batches.count++;
+
+				if (sleepMillis == 0) {
+					throw new RuntimeException("badly written listener");
+				}
+
+				Thread.sleep(sleepMillis);
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.ONCE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		return batches;
+	}
+
+	@Test
+	public void contentSearch() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("search", ".war");
+		URL[] bangUrls = createBangJar(jarFile, new String[] {WEB_INF_CLASSES, WEB_INF_MYCLASSES},
+			new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setParallelism(2);
+
+		final List<ContentMatchListener.ContentMatch> matches = Collections.synchronizedList(new ArrayList<ContentMatchListener.ContentMatch>());
+
+		cp.search(new URLClassLoader(bangUrls), Arrays.asList("SimpleJar", "JarBangClass"), new ContentMatchListener.EntryFilter() {
+			@Override
+			public boolean accept(String entryName) {
+				return entryName.endsWith("SimpleJarBangClass.class");
+			}
+		}, new ContentMatchListener() {
+			@Override
+			public void matched(ContentMatch match) {
+				matches.add(match);
+			}
+		});
+
+		Set<String> found = new HashSet<>();
+		try (JarFile jar = new JarFile(jarFile)) {
+			for (ContentMatchListener.ContentMatch match : matches) {
+				assertFalse(match.resource.resourceName.startsWith("WEB-INF"));
+				byte[] content = IOUtils.toByteArray(jar.getInputStream(jar.getEntry(match.resource.entry.getName())));
+				assertEquals(match.pattern, new String(content, (int) match.offset, match.pattern.length(), "UTF-8"));
+				assertArrayEquals(content, IOUtils.toByteArray(match.resource.getResolvedUrl()));
+				found.add(match.resource.offsetUrl + match.resource.resourceName + ":" + match.pattern);
+			}
+		}
+
+		assertEquals("both overlapping patterns in both offsets", 4, found.size());
+		assertTrue(cp.search(new URLClassLoader(bangUrls), "NotInAnyClass", null).isEmpty());
+
+		// entries outside the offsets aren't on the classpath, so they aren't searched either
+		File warFile = File.createTempFile("search-offsets", ".war");
+		Map<String, String> war = new LinkedHashMap<>();
+		war.put(WEB_INF_CLASSES + "inside.txt", "a needle in the classes");
+		war.put("outside.txt", "a needle in the war");
+		URL[] urls = new URL[] {new URL("jar:" + createJar(warFile, war).toURI().toString() + "!/" + WEB_INF_CLASSES)};
+
+		ClasspathScanner.resetScannerForTesting();
+		List<ContentMatchListener.ContentMatch> needles = new ClasspathScanner().search(new URLClassLoader(urls), "needle", new ContentMatchListener.EntryFilter() {
+			@Override
+			public boolean accept(String entryName) {
+				return entryName.endsWith(".txt");
+			}
+		});
+
+		assertEquals(1, needles.size());
+		assertEquals("inside.txt", needles.get(0).resource.resourceName);
+		assertEquals("a needle in the classes", IOUtils.toString(needles.get(0).resource.getResolvedUrl(), "UTF-8"));
+	}
+
+	@Test
+	public void descriptorIndex() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File plainJar = File.createTempFile("descriptors", ".jar");
+		File warFile = File.createTempFile("descriptors", ".war");
+		Map<String, String> plain = new LinkedHashMap<>();
+		plain.put("META-INF/services/com.example.Plugin", "# the plain plugin\ncom.example.PlainPlugin\n");
+		plain.put("META-INF/spring.factories", "com.example.Auto=com.example.First,\\\n  com.example.Second\n");
+		Map<String, String> war = new LinkedHashMap<>();
+		war.put(WEB_INF_CLASSES + "META-INF/services/com.example.Plugin", "com.example.WarPlugin\ncom.example.PlainPlugin\n");
+		war.put("META-INF/services/com.example.Plugin", "com.example.NotInAnOffset\n");
+
+		URL[] urls = new URL[] {createJar(plainJar, plain).toURI().toURL(),
+			new URL("jar:" + createJar(warFile, war).toURI().toString() + "!/" + WEB_INF_CLASSES)};
+
+		ClasspathScanner cp = new ClasspathScanner();
+		MutableInteger seen = packageListener(cp, "");
+		URLClassLoader loader = new URLClassLoader(urls);
+		cp.scan(loader);
+
+		DescriptorIndex index = cp.descriptors(loader);
+		assertEquals(Arrays.asList("com.example.PlainPlugin", "com.example.WarPlugin"), index.services("com.example.Plugin"));
+		assertEquals(Arrays.asList("com.example.Auto=com.example.First,com.example.Second"), index.find("META-INF/spring.factories").get(0).entries);
+		assertEquals(WEB_INF_CLASSES + "META-INF/services/com.example.Plugin", index.find("/META-INF/services/com.example.Plugin").get(1).entryName);
+		assertTrue("index is kept", index == cp.descriptors(loader));
+		assertTrue(seen.count > 0);
+
+		// nobody has scanned this one, so the descriptors are read when asked for
+		ClasspathScanner.resetScannerForTesting();
+		assertEquals(2, new ClasspathScanner().descriptors(new URLClassLoader(urls)).find("META-INF/services/com.example.Plugin").size());
+	}
+
+	@Test
+	public void pathScan() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File first = File.createTempFile("path", ".jar");
+		File second = File.createTempFile("path", ".jar");
+		createBangJar(first, new String[] {""}, new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+		createBangJar(second, new String[] {""}, new Class[] {SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+		MutableInteger seen = packageListener(cp, "");
+
+		List<ClasspathResource> scanned = cp.scan(first.getPath() + File.pathSeparator + second.getPath() + File.pathSeparator +
+			first.getPath() + File.pathSeparator + new File("not-there.jar").getPath());
+
+		assertEquals("duplicates and missing jars are ignored", 2, scanned.size());
+		assertEquals(first.getAbsoluteFile(), scanned.get(0).getClassesSource());
+		assertEquals(203, seen.count);
+		assertTrue("nothing is kept against a classloader", ClasspathScanner.resources.isEmpty());
+
+		for(ClasspathResource resource : scanned) {
+			resource.release();
+		}
+	}
+
+	@Test
+	public void shadowedResources() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File warFile = File.createTempFile("shadows", ".war");
+		URL[] bangUrls = createBangJar(warFile, new String[] {WEB_INF_CLASSES, WEB_INF_MYCLASSES},
+			new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		Map<String, String> first = new LinkedHashMap<>();
+		first.put("config/app.properties", "name=first");
+		first.put("config/same.properties", "same=true");
+		Map<String, String> second = new LinkedHashMap<>();
+		second.put("config/app.properties", "name=second");
+		second.put("config/same.properties", "same=true");
+
+		URL[] urls = new URL[] {bangUrls[0], bangUrls[1],
+			createJar(File.createTempFile("first", ".jar"), first).toURI().toURL(),
+			createJar(File.createTempFile("second", ".jar"), second).toURI().toURL()};
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setDetectShadowing(true);
+		packageListener(cp, "");
+
+		URLClassLoader loader = new URLClassLoader(urls);
+		cp.scan(loader);
+
+		ShadowedResources shadowed = cp.shadowedResources(loader);
+		Map<String, ShadowedResources.Shadow> byName = new HashMap<>();
+		for (ShadowedResources.Shadow shadow : shadowed.getShadows()) {
+			byName.put(shadow.name, shadow);
+		}
+
+		assertEquals(4, byName.size());
+		ShadowedResources.Shadow clazz = byName.get("com/bluetrainsoftware/classpathscanner/SimpleJarClass.class");
+		assertEquals("first offset wins", bangUrls[0], clazz.copies.get(0).url);
+		assertEquals(WEB_INF_MYCLASSES + "com/bluetrainsoftware/classpathscanner/SimpleJarClass.class", clazz.copies.get(1).entryName);
+		assertEquals(1, shadowed.getConflicts().size());
+		assertEquals("config/app.properties", shadowed.getConflicts().get(0).name);
+		assertEquals(Arrays.asList(urls[0], urls[1]), shadowed.getSplitPackages().get("com/bluetrainsoftware/classpathscanner/"));
+		assertEquals(2, shadowed.getSplitPackages().get("config/").size());
+	}
+
+	@Test
+	public void shadowedDirectoryCopies() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		// target/classes ahead of a stale jar - the same sizes, but only one of them has the same bytes
+		File classes = Files.createTempDirectory("classes").toFile();
+		new File(classes, "stale").mkdirs();
+		Files.write(new File(classes, "stale/Thing.class").toPath(), "version two".getBytes("UTF-8"));
+		Files.write(new File(classes, "stale/Same.class").toPath(), "unchanged".getBytes("UTF-8"));
+
+		Map<String, String> jar = new LinkedHashMap<>();
+		jar.put("stale/Thing.class", "version one");
+		jar.put("stale/Same.class", "unchanged");
+
+		ClasspathScanner cp = new ClasspathScanner();
+		packageListener(cp, "");
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL(),
+			createJar(File.createTempFile("stale", ".jar"), jar).toURI().toURL()});
+		cp.scan(loader);
+
+		ShadowedResources shadowed = cp.shadowedResources(loader);
+
+		assertEquals(2, shadowed.getShadows().size());
+		assertEquals(1, shadowed.getConflicts().size());
+		assertEquals("stale/Thing.class", shadowed.getConflicts().get(0).name);
+	}
+
+	@Test
+	public void keptOpenJars() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		File jarFile = File.createTempFile("handles", ".jar");
+		createBangJar(jarFile, new String[] {""}, new Class[] {SimpleJarBangClass.class, SimpleJarClass.class});
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setJarHandleCache(4, 0);
+
+		final List<ResourceScanListener.ScanResource> offered = new ArrayList<>();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				offered.addAll(scanResources);
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.REPEAT;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()});
+		cp.scan(loader);
+		cp.scan(loader);
+
+		assertEquals(4, offered.size());
+		assertEquals("jar stays open between scans", 1, cp.jarHandles().size());
+
+		try (InputStream stream = cp.openResource(loader, offered.get(0))) {
+			assertTrue(Arrays.equals(IOUtils.toByteArray(getClass().getResourceAsStream("/" + offered.get(0).resourceName)), IOUtils.toByteArray(stream)));
+		}
+
+		ClasspathScanner.release(loader);
+		assertEquals("closed with its classloader", 0, cp.jarHandles().size());
+	}
+
+	@Test
+	public void adaptiveBatches() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		for (int i = 0; i < 40; i++) {
+			entries.put("batch/resource" + i + ".txt", "resource " + i);
+		}
+
+		File jarFile = createJar(File.createTempFile("batches", ".jar"), entries);
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setBatchSizes(2, 16);
+		cp.setBatchTargetMillis(1);
+
+		final List<Integer> offered = new ArrayList<>();
+
+		ResourceScanListener slowListener = new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				offered.add(scanResources.size());
+				Thread.sleep(10);
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.ONCE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		};
+
+		cp.registerResourceScanner(slowListener);
+		cp.scan(new URLClassLoader(new URL[] {jarFile.toURI().toURL()}));
+
+		ScanMetrics metrics = cp.getLastScanMetrics();
+
+		assertEquals(offered.size(), metrics.getBatches());
+		assertEquals(16, (int) offered.get(0));
+		assertEquals("shrinks for a slow listener", Arrays.asList(16, 8, 4, 2), metrics.getBatchSizes());
+		assertEquals(40, metrics.getListenerTimings().get(slowListener).resources);
+	}
+
+	@Test
+	public void concurrentScansKeepTheirOwnBatchTimes() throws IOException {
+		URL url = new URL("file:/batches.jar");
+		List<ResourceScanListener.ScanResource> batch = new ArrayList<>();
+		batch.add(new ResourceScanListener.ScanResource(url, new JarEntry("a"), "a", url));
+		batch.add(new ResourceScanListener.ScanResource(url, new JarEntry("b"), "b", url));
+
+		ResourceScanListener slow = quietListener();
+		ResourceScanListener fast = quietListener();
+
+		BatchSizer sizer = new BatchSizer(2, 64, 1, Long.MAX_VALUE, 2.0);
+		BatchSizer.Scan first = sizer.startScan();
+		sizer.record(first, slow, batch, 2 * 1000000L);
+		assertEquals(32, sizer.batchSize());
+
+		BatchSizer.Scan second = sizer.startScan();
+		sizer.record(first, fast, batch, 2);
+		assertEquals("the slow listener still counts for the first scan", 16, sizer.batchSize());
+		sizer.record(second, fast, batch, 2);
+		assertEquals("but not for the second", 32, sizer.batchSize());
+
+		// a batch is charged for the average of its names, not the first one
+		StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 999; i++) {
+			longName.append('x');
+		}
+
+		batch.set(1, new ResourceScanListener.ScanResource(url, new JarEntry(longName.toString()), longName.toString(), url));
+
+		sizer = new BatchSizer(2, 64, 1000, 4000, 2.0);
+		sizer.record(null, fast, batch, 2);
+		assertEquals(10, sizer.batchSize());
+	}
+
+	private ResourceScanListener quietListener() {
+		return new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.NONE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		};
+	}
+
+	@Test
+	public void multiReleaseJars() throws IOException {
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nMulti-Release: true\n");
+		entries.put("mr/Versioned.txt", "base");
+		entries.put("META-INF/versions/9/mr/Versioned.txt", "nine");
+		entries.put("META-INF/versions/11/mr/Versioned.txt", "eleven");
+		entries.put("META-INF/versions/9/mr/Added.txt", "added");
+		entries.put("META-INF/versions/99/mr/Versioned.txt", "future");
+		entries.put("META-INF/versions/8/mr/Versioned.txt", "too early");
+		entries.put("META-INF/versions/8/mr/Early.txt", "too early");
+
+		File jarFile = createJar(File.createTempFile("multi", ".jar"), entries);
+
+		Map<String, String> delivered = multiReleaseScan(jarFile, 11);
+		assertEquals("eleven", delivered.get("mr/Versioned.txt"));
+		assertEquals("added", delivered.get("mr/Added.txt"));
+		assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "mr/Versioned.txt", "mr/Added.txt"), new ArrayList<>(delivered.keySet()));
+
+		delivered = multiReleaseScan(jarFile, 8);
+		assertEquals("versions below 9 are never used", Arrays.asList("META-INF/MANIFEST.MF", "mr/Versioned.txt"), new ArrayList<>(delivered.keySet()));
+		assertEquals("base", delivered.get("mr/Versioned.txt"));
+
+		assertEquals("off unless asked for", 0, new ClasspathScanner().getMultiReleaseVersion());
+		assertEquals("as they are in the jar", 8, multiReleaseScan(jarFile, 0).size());
+
+		EntryTable table = new EntryTable(EntryStorage.HEAP);
+		table.add("META-INF/versions/11/mr/only/Later.class", 10, 1, 0);
+		PackageFilter filter = PackageFilter.of(table.complete());
+		assertTrue("the package only exists in a versioned directory", filter.mightContain("mr.only"));
+		assertTrue(filter.mightContain("META-INF/versions/11/mr/only"));
+		table.release();
+	}
+
+	private Map<String, String> multiReleaseScan(File jarFile, int version) throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setMultiReleaseVersion(version);
+
+		final Map<String, String> delivered = new LinkedHashMap<>();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				return scanResources;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+				try {
+					delivered.put(desire.resourceName, new String(IOUtils.toByteArray(inputStream), "UTF-8"));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.ONCE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		cp.scan(new URLClassLoader(new URL[] {jarFile.toURI().toURL()}));
+
+		return delivered;
+	}
+
+	@Test
+	public void sharedScanIndex() throws IOException {
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("shared/one.txt", "one");
+		entries.put("shared/two.txt", "two");
+
+		File jarFile = createJar(File.createTempFile("shared", ".jar"), entries);
+		File directory = Files.createTempDirectory("shared-index").toFile();
+
+		assertEquals(Arrays.asList("shared/one.txt", "shared/two.txt"), sharedIndexScan(jarFile, directory));
+		assertEquals(1, directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".idx");
+			}
+		}).length);
+
+		SharedScanIndex index = new SharedScanIndex(directory);
+		EntryTable table = index.load(jarFile);
+
+		assertEquals(2, table.size());
+		assertEquals(1, table.find("shared/two.txt"));
+		assertEquals("another JVM gets the same from the index", Arrays.asList("shared/one.txt", "shared/two.txt"), sharedIndexScan(jarFile, directory));
+
+		long length = jarFile.length();
+		long lastModified = jarFile.lastModified();
+
+		assertTrue(jarFile.setLastModified(lastModified - 10000));
+		assertNull("the jar has changed", index.load(jarFile));
+
+		// same path, length and time, but different entries
+		entries.put("shared/two.txt", "owt");
+		createJar(jarFile, entries);
+		assertTrue(jarFile.setLastModified(lastModified));
+		assertEquals(length, jarFile.length());
+		assertNull("the central directory has changed", index.load(jarFile));
+	}
+
+	private List<String> sharedIndexScan(File jarFile, File directory) throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setSharedIndexDirectory(directory);
+
+		final List<String> offered = new ArrayList<>();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				for (ScanResource scanResource : scanResources) {
+					offered.add(scanResource.resourceName);
+				}
+
+				return null;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.ONCE;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		cp.scan(new URLClassLoader(new URL[] {jarFile.toURI().toURL()}));
+
+		return offered;
+	}
+
+	@Test
+	public void specialistRouting() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nSpecial-Format: yes\n");
+		File specialJar = createJar(File.createTempFile("special", ".jar"), entries);
+
+		entries.clear();
+		entries.put("plain/resource.txt", "plain");
+		File plainJar = createJar(File.createTempFile("plain", ".jar"), entries);
+
+		final Map<String, Integer> asked = new HashMap<>();
+		final MutableInteger handles = new MutableInteger();
+		handles.count = 2;
+
+		ClasspathScannerSpecialist selective = new ClasspathScannerSpecialist.Selective() {
+			@Override
+			public List<ResourceSelector> selectors() {
+				return Arrays.asList(new ResourceSelector().urlMatching("\\.jar$").magic(0, new byte[] {'P', 'K', 3, 4}).manifestAttribute("Special-Format", "yes"));
+			}
+
+			@Override
+			public boolean handlesClasspathResource(ClasspathResource resource, List<ResourceScanListener.ScanResource> scanResources) {
+				assertEquals("yes", resource.getProbe().getManifest().getMainAttributes().getValue("Special-Format"));
+				count(asked, resource.getClassesSource().getName());
+				return handles.count-- > 0;
+			}
+		};
+
+		ClasspathScannerSpecialist legacy = new ClasspathScannerSpecialist() {
+			@Override
+			public boolean handlesClasspathResource(ClasspathResource resource, List<ResourceScanListener.ScanResource> scanResources) {
+				count(asked, "legacy " + resource.getClassesSource().getName());
+				return false;
+			}
+		};
+
+		ClasspathScannerSpecialist late = new ClasspathScannerSpecialist() {
+			@Override
+			public boolean handlesClasspathResource(ClasspathResource resource, List<ResourceScanListener.ScanResource> scanResources) {
+				count(asked, "late " + resource.getClassesSource().getName());
+				return false;
+			}
+		};
+
+		ClasspathSpecialistLoader.specialists.add(selective);
+		ClasspathSpecialistLoader.specialists.add(legacy);
+
+		try {
+			ClasspathScanner cp = new ClasspathScanner();
+
+			cp.registerResourceScanner(new ResourceScanListener() {
+				@Override
+				public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+					return null;
+				}
+
+				@Override
+				public void deliver(ScanResource desire, InputStream inputStream) {
+				}
+
+				@Override
+				public InterestAction isInteresting(InterestingResource interestingResource) {
+					return InterestAction.REPEAT;
+				}
+
+				@Override
+				public void scanAction(ScanAction action) {
+				}
+			});
+
+			URLClassLoader loader = new URLClassLoader(new URL[] {specialJar.toURI().toURL(), plainJar.toURI().toURL()});
+			cp.scan(loader);
+			cp.scan(loader);
+
+			assertEquals("handled both times", 2, (int) asked.get(specialJar.getName()));
+			assertNull("not selected", asked.get(plainJar.getName()));
+			assertNull("handled before the legacy specialist was asked", asked.get("legacy " + specialJar.getName()));
+			assertEquals("routed once, then remembered", 1, (int) asked.get("legacy " + plainJar.getName()));
+
+			// it no longer wants the jar, so it is asked again along with everyone else
+			cp.scan(loader);
+			assertEquals(4, (int) asked.get(specialJar.getName()));
+			assertEquals(1, (int) asked.get("legacy " + specialJar.getName()));
+
+			// nobody wanting a jar is only remembered for the listeners it was asked for
+			packageListener(cp, "plain");
+			cp.scan(loader);
+			assertEquals(2, (int) asked.get("legacy " + plainJar.getName()));
+			cp.scan(loader);
+			assertEquals("and again once the listener has had its one scan", 3, (int) asked.get("legacy " + plainJar.getName()));
+			cp.scan(loader);
+			assertEquals(3, (int) asked.get("legacy " + plainJar.getName()));
+
+			ClasspathSpecialistLoader.specialists.add(late);
+			cp.scan(loader);
+			assertEquals("a new specialist is asked", 1, (int) asked.get("late " + plainJar.getName()));
+			assertEquals(4, (int) asked.get("legacy " + plainJar.getName()));
+		} finally {
+			ClasspathSpecialistLoader.specialists.remove(selective);
+			ClasspathSpecialistLoader.specialists.remove(legacy);
+			ClasspathSpecialistLoader.specialists.remove(late);
+		}
+	}
+
+	private static void count(Map<String, Integer> counts, String name) {
+		Integer counter = counts.get(name);
+
+		counts.put(name, counter == null ? 1 : counter + 1);
+	}
+
+	@Test
+	public void keptOpenJarRewritten() throws IOException {
+		ClasspathScanner.resetScannerForTesting();
+
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("rewritten/first.txt", "first version");
+		entries.put("rewritten/second.txt", "first version of the second");
+		File jarFile = createJar(File.createTempFile("rewritten", ".jar"), entries);
+
+		ClasspathScanner cp = new ClasspathScanner();
+		cp.setJarHandleCache(4, 0);
+
+		final Map<String, String> delivered = new HashMap<>();
+
+		cp.registerResourceScanner(new ResourceScanListener() {
+			@Override
+			public List<ScanResource> resource(List<ScanResource> scanResources) throws Exception {
+				return scanResources;
+			}
+
+			@Override
+			public void deliver(ScanResource desire, InputStream inputStream) {
+				try {
+					delivered.put(desire.resourceName, new String(IOUtils.toByteArray(inputStream), "UTF-8"));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			@Override
+			public InterestAction isInteresting(InterestingResource interestingResource) {
+				return InterestAction.REPEAT;
+			}
+
+			@Override
+			public void scanAction(ScanAction action) {
+			}
+		});
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()});
+		cp.scan(loader);
+
+		assertEquals("first version", delivered.get("rewritten/first.txt"));
+
+		entries.clear();
+		entries.put("rewritten/new.txt", "a new entry ahead of the others");
+		entries.put("rewritten/first.txt", "the second version, which is longer");
+		entries.put("rewritten/second.txt", "second version of the second");
+		createJar(jarFile, entries);
+		assertTrue(jarFile.setLastModified(jarFile.lastModified() + 10000));
+
+		delivered.clear();
+		cp.scan(loader);
+
+		assertEquals(3, delivered.size());
+		assertEquals("the second version, which is longer", delivered.get("rewritten/first.txt"));
+		assertEquals("second version of the second", delivered.get("rewritten/second.txt"));
+		assertEquals("a new entry ahead of the others", delivered.get("rewritten/new.txt"));
+		assertEquals(1, cp.jarHandles().size());
+	}
+
+	private File createJar(File jarFile, Map<String, String> entries) throws IOException {
+		try (JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jarFile))) {
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				jarOutputStream.putNextEntry(new JarEntry(entry.getKey()));
+				jarOutputStream.write(entry.getValue().getBytes("UTF-8"));
+			}
+		}
+
+		return jarFile;
+	}
+
+	private ResourceScanListener lastRegisteredListener() {
+		return ClasspathScanner.allUncheckedListeners.get(ClasspathScanner.allUncheckedListeners.size() - 1);
+	}
+
 	class MutableInteger {
 		int count;
 	}